@@ -0,0 +1,65 @@
+package org.jboss.pull.player;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Scanning the comment history of a pull request for commands, on its own and while building the summary the
+ * decision is taken from.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Duser.home=target/jmh")
+@State(Scope.Benchmark)
+public class CommandScannerBenchmark {
+
+    /**
+     * The number of comments on the pull request
+     */
+    @Param({"100", "1000"})
+    int comments;
+
+    private List<Comment> history;
+    private CommentFeed feed;
+
+    @Setup
+    public void setup() {
+        final Path home = Payloads.home();
+        history = Payloads.readComments(Payloads.comments(10000, comments));
+        final PersistentList whiteList = PersistentList.loadList("benchmark-white-list");
+        for (int i = 0; i < Payloads.USERS; i += 2) {
+            whiteList.add(Payloads.user(i));
+        }
+        final PersistentList adminList = PersistentList.loadList("benchmark-admin-list");
+        adminList.add(Payloads.user(0));
+        feed = new CommentFeed(home.resolve("benchmark-comment-feed.json"), false, Payloads.BOT, whiteList, adminList);
+    }
+
+    @Benchmark
+    public void scan(final Blackhole blackhole) {
+        for (Comment comment : history) {
+            blackhole.consume(CommandScanner.scan(comment.comment));
+        }
+    }
+
+    @Benchmark
+    public CommentFeed.Summary summarize() {
+        return feed.summarize(10000, history);
+    }
+}
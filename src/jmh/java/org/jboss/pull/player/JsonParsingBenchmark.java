@@ -0,0 +1,101 @@
+package org.jboss.pull.player;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.jboss.dmr.ModelNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a page of GitHub pull requests, the comments of a pull request and a page of TeamCity builds, into a
+ * {@link ModelNode} tree and with the streaming {@link JsonReader} the player uses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Duser.home=target/jmh")
+@State(Scope.Benchmark)
+public class JsonParsingBenchmark {
+
+    /**
+     * The number of elements per page, GitHub and TeamCity return at most 100
+     */
+    @Param({"30", "100"})
+    int size;
+
+    private byte[] pullRequests;
+    private byte[] comments;
+    private byte[] builds;
+
+    @Setup
+    public void setup() {
+        pullRequests = Payloads.bytes(Payloads.pullRequests(size));
+        comments = Payloads.bytes(Payloads.comments(10000, size));
+        builds = Payloads.bytes(Payloads.builds(size));
+    }
+
+    @Benchmark
+    public ModelNode pullRequestsModelNode() throws IOException {
+        return ModelNode.fromJSONStream(new ByteArrayInputStream(pullRequests));
+    }
+
+    @Benchmark
+    public int pullRequestsJsonReader() throws IOException {
+        int count = 0;
+        try (JsonReader reader = new JsonReader(new ByteArrayInputStream(pullRequests))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                count += PullRequest.read(reader).number;
+            }
+            reader.endArray();
+        }
+        return count;
+    }
+
+    @Benchmark
+    public ModelNode commentsModelNode() throws IOException {
+        return ModelNode.fromJSONStream(new ByteArrayInputStream(comments));
+    }
+
+    @Benchmark
+    public int commentsJsonReader() throws IOException {
+        int count = 0;
+        try (JsonReader reader = new JsonReader(new ByteArrayInputStream(comments))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                count += Comment.read(reader).comment.length();
+            }
+            reader.endArray();
+        }
+        return count;
+    }
+
+    @Benchmark
+    public ModelNode buildsModelNode() throws IOException {
+        return ModelNode.fromJSONStream(new ByteArrayInputStream(builds));
+    }
+
+    @Benchmark
+    public List<?> buildsJsonReader() throws IOException {
+        final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new ByteArrayEntity(builds));
+        return TeamCityApi.readBuilds(response).builds;
+    }
+}
@@ -0,0 +1,314 @@
+package org.jboss.pull.player;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Synthetic GitHub and TeamCity payloads for the benchmarks, shaped like the real responses with the fields the player
+ * doesn't read included, so parsing has to skip them as it does in production. The payloads are generated from a fixed
+ * seed, every run parses the same bytes.
+ * <p/>
+ * The benchmarks run with {@code user.home} set to {@code target/jmh}, so the stores they create never touch the
+ * state of an installed player.
+ */
+final class Payloads {
+    static final String REPO = "https://api.github.com/repos/wildfly/wildfly";
+    static final String BOT = "pull-player-bot";
+    static final int USERS = 200;
+
+    private static final String[] WORDS = ("the of and to in is that for it as with was on be by this are from or have "
+            + "an they which one you had not but what all were when we there can more if out so said use each she do how "
+            + "their will up other about many then them these some would make like him into time has look two write go see "
+            + "subsystem deployment undertow ejb jpa messaging security elytron infinispan clustering transaction").split(" ");
+
+    private Payloads() {
+    }
+
+    /**
+     * Makes sure the directory of the player state exists with an empty {@code player.properties}.
+     *
+     * @return the directory of the player state
+     */
+    static Path home() {
+        final Path home = Util.BASE_DIR.toPath();
+        try {
+            Files.createDirectories(home);
+            final Path properties = home.resolve("player.properties");
+            if (!Files.exists(properties)) {
+                Files.write(properties, new byte[0]);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return home;
+    }
+
+    /**
+     * @return one of the users commenting on the pull requests
+     */
+    static String user(final int i) {
+        return "user-" + (i % USERS);
+    }
+
+    /**
+     * @return the author of the i-th pull request, every pull request has its own author
+     */
+    static String author(final int i) {
+        return "author-" + i;
+    }
+
+    static String sha(final int pull) {
+        return String.format("%040x", (long) pull * 0x9E3779B97F4A7C15L & Long.MAX_VALUE);
+    }
+
+    /**
+     * @return a page of pull requests in the format of the REST API, with their mergeable state like single pull
+     * requests are returned
+     */
+    static String pullRequests(final int count) {
+        final Random random = new Random(count);
+        final ModelNode result = new ModelNode().setEmptyList();
+        for (int i = 0; i < count; i++) {
+            final int number = 10000 + i;
+            final ModelNode pull = result.add();
+            pull.get("url").set(REPO + "/pulls/" + number);
+            pull.get("id").set(300000000L + number);
+            pull.get("node_id").set("MDExOlB1bGxSZXF1ZXN0" + number);
+            pull.get("html_url").set("https://github.com/wildfly/wildfly/pull/" + number);
+            pull.get("diff_url").set("https://github.com/wildfly/wildfly/pull/" + number + ".diff");
+            pull.get("patch_url").set("https://github.com/wildfly/wildfly/pull/" + number + ".patch");
+            pull.get("issue_url").set(REPO + "/issues/" + number);
+            pull.get("number").set(number);
+            pull.get("state").set("open");
+            pull.get("locked").set(false);
+            pull.get("title").set("WFLY-" + number + " " + text(random, 8));
+            pull.get("user").set(user(author(i), i));
+            pull.get("body").set(text(random, 150 + random.nextInt(300)));
+            pull.get("created_at").set("2019-06-01T10:00:00Z");
+            pull.get("updated_at").set("2019-06-" + String.format("%02d", 1 + i % 28) + "T12:00:00Z");
+            pull.get("closed_at");
+            pull.get("merged_at");
+            pull.get("merge_commit_sha").set(sha(number + 1));
+            pull.get("mergeable").set(true);
+            pull.get("mergeable_state").set("clean");
+            pull.get("assignee");
+            pull.get("assignees").setEmptyList();
+            pull.get("requested_reviewers").setEmptyList();
+            final ModelNode labels = pull.get("labels").setEmptyList();
+            for (int l = 0; l < i % 3; l++) {
+                final ModelNode label = labels.add();
+                label.get("id").set(1000 + l);
+                label.get("name").set(l == 0 ? "7.x" : "Hold");
+                label.get("color").set("ededed");
+                label.get("default").set(false);
+            }
+            pull.get("commits_url").set(REPO + "/pulls/" + number + "/commits");
+            pull.get("review_comments_url").set(REPO + "/pulls/" + number + "/comments");
+            pull.get("comments_url").set(REPO + "/issues/" + number + "/comments");
+            pull.get("statuses_url").set(REPO + "/statuses/" + sha(number));
+            pull.get("head").set(ref(author(i) + ":WFLY-" + number, "WFLY-" + number, sha(number), author(i), i));
+            pull.get("base").set(ref("wildfly:master", "master", sha(1), "wildfly", 0));
+            pull.get("author_association").set("CONTRIBUTOR");
+        }
+        return result.toJSONString(true);
+    }
+
+    /**
+     * @return a page of TeamCity builds with the fields the player requests
+     */
+    static String builds(final int count) {
+        final ModelNode result = new ModelNode();
+        result.get("count").set(count);
+        result.get("href").set("/httpAuth/app/rest/builds?locator=buildType:WF_PullRequest,count:" + count);
+        result.get("nextHref").set("/httpAuth/app/rest/builds?locator=buildType:WF_PullRequest,count:" + count + ",start:" + count);
+        final ModelNode builds = result.get("build").setEmptyList();
+        for (int i = 0; i < count; i++) {
+            final int pull = 10000 + i;
+            final ModelNode build = builds.add();
+            build.get("id").set(500000 + i);
+            build.get("buildTypeId").set("WF_PullRequest");
+            build.get("number").set(String.valueOf(9000 + i));
+            build.get("status").set(i % 7 == 0 ? "FAILURE" : "SUCCESS");
+            build.get("state").set("finished");
+            build.get("running").set(false);
+            build.get("branchName").set("pull/" + pull);
+            build.get("href").set("/httpAuth/app/rest/builds/id:" + (500000 + i));
+            build.get("webUrl").set("https://ci.wildfly.org/viewLog.html?buildId=" + (500000 + i));
+            build.get("queuedDate").set("20190601T120000+0000");
+            final ModelNode properties = build.get("properties", "property").setEmptyList();
+            property(properties, "hash", sha(pull));
+            property(properties, "pull", String.valueOf(pull));
+            property(properties, "branch", "master");
+            property(properties, "env.JAVA_HOME", "/opt/jdk-11");
+        }
+        return result.toJSONString(true);
+    }
+
+    /**
+     * @return the comments of a pull request in the format of the REST API, mostly discussion with the commands and
+     * the comments of the player spread over the history
+     */
+    static String comments(final int pull, final int count) {
+        final Random random = new Random(pull);
+        final ModelNode result = new ModelNode().setEmptyList();
+        Instant created = Instant.parse("2019-06-01T10:00:00Z");
+        for (int i = 0; i < count; i++) {
+            created = created.plusSeconds(600 + random.nextInt(3600));
+            final ModelNode comment = result.add();
+            final String user;
+            final String body;
+            switch (random.nextInt(12)) {
+                case 0:
+                    user = BOT;
+                    body = "Merge of " + sha(pull) + " on branch master, triggering build: https://ci.wildfly.org/viewQueued.html?itemId=" + i;
+                    break;
+                case 1:
+                    user = user(i);
+                    body = "retest this please";
+                    break;
+                case 2:
+                    user = user(i);
+                    body = Command.RETEST.getCommand();
+                    break;
+                case 3:
+                    user = BOT;
+                    body = "Hello, " + author(pull - 10000) + ". I'm waiting for one of the admins to verify this patch with " + Command.OK_TO_TEST.getCommand() + " in a comment.";
+                    break;
+                default:
+                    user = user(i);
+                    body = text(random, 20 + random.nextInt(200));
+            }
+            comment.get("url").set(REPO + "/issues/comments/" + (pull * 1000L + i));
+            comment.get("html_url").set("https://github.com/wildfly/wildfly/pull/" + pull + "#issuecomment-" + (pull * 1000L + i));
+            comment.get("issue_url").set(REPO + "/issues/" + pull);
+            comment.get("id").set(pull * 1000L + i);
+            comment.get("user").set(user(user, i));
+            comment.get("created_at").set(created.toString());
+            comment.get("updated_at").set(created.toString());
+            comment.get("author_association").set("CONTRIBUTOR");
+            comment.get("body").set(body);
+        }
+        return result.toJSONString(true);
+    }
+
+    /**
+     * @return the pull requests of {@link #pullRequests(int)} read like the player reads them
+     */
+    static List<PullRequest> readPullRequests(final String json) {
+        final List<PullRequest> result = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                result.add(PullRequest.read(reader));
+            }
+            reader.endArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result;
+    }
+
+    /**
+     * @return the comments of {@link #comments(int, int)} read like the player reads them
+     */
+    static List<Comment> readComments(final String json) {
+        final List<Comment> result = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                result.add(Comment.read(reader));
+            }
+            reader.endArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the log of {@link Jobs} with a completed build for each pull request, before the jobs are loaded. Storing
+     * each job through {@link Jobs} would sync every record to disk.
+     *
+     * @param home  the directory of the player state
+     * @param pulls the pull requests, the job is stored for the {@link #sha(int) sha} of the number
+     */
+    static void writeCompletedJobs(final Path home, final List<Integer> pulls) {
+        final List<String> log = new ArrayList<>(pulls.size());
+        int build = 0;
+        for (int pull : pulls) {
+            final String record = "S " + sha(pull) + " " + pull + " " + build++;
+            final CRC32 crc = new CRC32();
+            crc.update(record.getBytes(StandardCharsets.UTF_8));
+            log.add(record + " " + Long.toHexString(crc.getValue()));
+        }
+        try {
+            Files.write(home.resolve("completed-jobs.log"), log, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static byte[] bytes(final String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ModelNode user(final String login, final int id) {
+        final ModelNode user = new ModelNode();
+        user.get("login").set(login);
+        user.get("id").set(100000 + id);
+        user.get("node_id").set("MDQ6VXNlcj" + id);
+        user.get("avatar_url").set("https://avatars.githubusercontent.com/u/" + (100000 + id) + "?v=4");
+        user.get("url").set("https://api.github.com/users/" + login);
+        user.get("html_url").set("https://github.com/" + login);
+        user.get("type").set("User");
+        user.get("site_admin").set(false);
+        return user;
+    }
+
+    private static ModelNode ref(final String label, final String ref, final String sha, final String owner, final int id) {
+        final ModelNode node = new ModelNode();
+        node.get("label").set(label);
+        node.get("ref").set(ref);
+        node.get("sha").set(sha);
+        node.get("user").set(user(owner, id));
+        final ModelNode repo = node.get("repo");
+        repo.get("id").set(2000000 + id);
+        repo.get("name").set("wildfly");
+        repo.get("full_name").set(owner + "/wildfly");
+        repo.get("private").set(false);
+        repo.get("owner").set(user(owner, id));
+        repo.get("html_url").set("https://github.com/" + owner + "/wildfly");
+        repo.get("description").set("WildFly Application Server");
+        repo.get("fork").set(id != 0);
+        repo.get("default_branch").set("master");
+        return node;
+    }
+
+    private static void property(final ModelNode properties, final String name, final String value) {
+        final ModelNode property = properties.add();
+        property.get("name").set(name);
+        property.get("value").set(value);
+    }
+
+    private static String text(final Random random, final int words) {
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                result.append(i % 17 == 0 ? ".\n\n" : " ");
+            }
+            result.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,157 @@
+package org.jboss.pull.player;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The decision taken for each open pull request, with GitHub and TeamCity replaced by stubs answering from memory.
+ * <p/>
+ * A third of the pull requests already have a completed job, a third have a build in progress and the authors of the
+ * rest are not on the white list, so no build is triggered and nothing is written per operation except the in memory
+ * pull request states. {@link #processPull()} takes the full decision for every pull request, {@link #processPulls()}
+ * runs a cycle in which the pull requests with a final result are skipped.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Duser.home=target/jmh")
+@State(Scope.Benchmark)
+public class PullDecisionBenchmark {
+
+    /**
+     * The number of open pull requests
+     */
+    @Param({"100", "500"})
+    int pulls;
+
+    /**
+     * The number of comments on each pull request
+     */
+    @Param({"50"})
+    int comments;
+
+    private PrintStream out;
+    private HttpTransport transport;
+    private PullPlayer player;
+    private PersistentList whiteList;
+    private PersistentList adminList;
+    private BuildQueue queue;
+    private List<PullRequest> nodes;
+
+    @Setup
+    public void setup() throws Exception {
+        final Path home = Payloads.home();
+        nodes = Payloads.readPullRequests(Payloads.pullRequests(pulls));
+        final Map<Integer, List<Comment>> history = new HashMap<>();
+        final Map<Integer, TeamCityBuild> builds = new HashMap<>();
+        final List<Integer> completed = new ArrayList<>();
+        whiteList = PersistentList.loadList("benchmark-white-list");
+        adminList = PersistentList.loadList("benchmark-admin-list");
+        adminList.add(Payloads.user(0));
+        for (int i = 0; i < nodes.size(); i++) {
+            final PullRequest pull = nodes.get(i);
+            history.put(pull.number, Payloads.readComments(Payloads.comments(pull.number, comments)));
+            if (i % 3 != 2) {
+                whiteList.add(pull.user);
+            }
+            if (i % 3 == 0) {
+                completed.add(pull.number);
+            } else if (i % 3 == 1) {
+                builds.put(pull.number, new TeamCityBuild(9000 + i, null, true, "20190601T120000+0000"));
+            }
+        }
+        // the head shas of the synthetic pull requests are the sha of their number
+        Payloads.writeCompletedJobs(home, completed);
+        queue = new BuildQueue();
+
+        transport = new HttpTransport(10, 60, 2);
+        final GitHubApi gitHubApi = new GitHubApi("token", "wildfly/wildfly", true, new RateLimitBudget(500, 60),
+                new HttpCache(home.resolve("benchmark-http-cache.bin"), 10, 1024), transport) {
+            @Override
+            CompletableFuture<List<Comment>> getCommentsAsync(final PullRequest pull) {
+                return CompletableFuture.completedFuture(history.get(pull.number));
+            }
+
+            @Override
+            CompletableFuture<PullRequest> getPullRequestDetailsAsync(final int pullRequest) {
+                throw new IllegalStateException("The listed pull requests already contain the details");
+            }
+
+            @Override
+            public void postComment(final int number, final String comment) {
+            }
+        };
+        final TeamCityApi teamCityApi = new TeamCityApi("localhost", 8111, "user", "password", "master=>WF_PullRequest",
+                true, false, transport) {
+            @Override
+            BuildQueue getQueuedBuilds() {
+                return queue;
+            }
+
+            @Override
+            public TeamCityBuild findBuild(final int pull, final String hash, final String branch) {
+                return builds.get(pull);
+            }
+
+            @Override
+            String triggerJob(final int pull, final String sha1, final String branch) {
+                throw new IllegalStateException("No build is triggered for the synthetic pull requests");
+            }
+        };
+        player = new PullPlayer(home.toFile(), true, gitHubApi, teamCityApi, whiteList, adminList, Payloads.BOT, null, null);
+        // the decisions are logged for every pull request
+        out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(final int b) {
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+            }
+        }));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+        transport.close();
+    }
+
+    @Benchmark
+    public int processPull() {
+        int unknown = 0;
+        for (PullRequest pull : nodes) {
+            if (player.processPull(whiteList, adminList, queue, pull)) {
+                unknown++;
+            }
+        }
+        return unknown;
+    }
+
+    @Benchmark
+    public void processPulls() {
+        player.processPulls(whiteList, adminList, nodes);
+    }
+}
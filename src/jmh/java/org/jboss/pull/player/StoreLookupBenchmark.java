@@ -0,0 +1,76 @@
+package org.jboss.pull.player;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups in the completed {@link Jobs} and a {@link PersistentList} holding the given number of entries, half of the
+ * lookups hit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Duser.home=target/jmh")
+@State(Scope.Benchmark)
+public class StoreLookupBenchmark {
+
+    @Param({"10000", "100000"})
+    int entries;
+
+    private String[] shas;
+    private String[] users;
+    private Jobs jobs;
+    private PersistentList list;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        final Path home = Payloads.home();
+        final List<Integer> pulls = new ArrayList<>(entries);
+        final List<String> names = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            pulls.add(i);
+            names.add("user-" + i);
+        }
+        Payloads.writeCompletedJobs(home, pulls);
+        jobs = new Jobs(home.toFile());
+        Files.write(home.resolve("benchmark-list-" + entries), names, StandardCharsets.UTF_8);
+        list = PersistentList.loadList("benchmark-list-" + entries);
+        shas = new String[1024];
+        users = new String[1024];
+        for (int i = 0; i < shas.length; i++) {
+            // every other lookup is for an entry which doesn't exist
+            final int entry = (int) ((i * 2654435761L) % entries);
+            shas[i] = Payloads.sha(i % 2 == 0 ? entry : entries + entry);
+            users[i] = "user-" + (i % 2 == 0 ? entry : entries + entry);
+        }
+    }
+
+    @Benchmark
+    public String completedJob() {
+        return jobs.getCompletedJob(shas[next++ & 1023]);
+    }
+
+    @Benchmark
+    public boolean listContains() {
+        return list.has(users[next++ & 1023]);
+    }
+}
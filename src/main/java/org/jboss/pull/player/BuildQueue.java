@@ -0,0 +1,52 @@
+package org.jboss.pull.player;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The pull requests with a build in the TeamCity queue, indexed by build type.
+ * <p/>
+ * Pull request numbers are small and dense, so each build type keeps a {@link BitSet} of its queued pull requests and
+ * a lookup is a hash of the build type and a bit test.
+ */
+class BuildQueue {
+    static final BuildQueue EMPTY = new BuildQueue();
+
+    private final Map<String, BitSet> queued = new HashMap<>();
+    private int size;
+
+    /**
+     * Adds a queued build, only used while the queue is read.
+     *
+     * @param buildTypeId the build type of the queued build
+     * @param pull        the pull request the build is for
+     */
+    void add(final String buildTypeId, final int pull) {
+        final BitSet pulls = queued.computeIfAbsent(buildTypeId, k -> new BitSet());
+        if (!pulls.get(pull)) {
+            pulls.set(pull);
+            size++;
+        }
+    }
+
+    /**
+     * @return {@code true} if a build of the build type is queued for the pull request
+     */
+    boolean contains(final String buildTypeId, final int pull) {
+        final BitSet pulls = queued.get(buildTypeId);
+        return pulls != null && pull >= 0 && pulls.get(pull);
+    }
+
+    /**
+     * @return the number of queued builds of pull requests
+     */
+    int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "BuildQueue: " + queued;
+    }
+}
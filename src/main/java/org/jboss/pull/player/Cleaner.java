@@ -7,15 +7,15 @@ public class Cleaner {
 
     public static void main(String[] args) throws Exception {
         boolean dry = args.length == 1 && args[0].equals("--dry");
-        PullPlayer player = new PullPlayer(dry);
+        Repositories repositories = new Repositories(dry);
         System.out.println("Starting at: " + PullPlayer.getTime());
         try {
             //player.cleanupComments(3047);
-            player.cleanupComments();
+            repositories.cleanupComments();
         } catch (Exception e) {
             e.printStackTrace(System.err);
         } finally {
-            player.cleanup();
+            repositories.cleanup();
         }
         System.out.println("Completed at: " + PullPlayer.getTime());
 
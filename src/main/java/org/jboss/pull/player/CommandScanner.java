@@ -0,0 +1,290 @@
+package org.jboss.pull.player;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the {@link Command commands}, the deprecated command phrases and the phrases of the player's own comments in a
+ * comment with a single pass over its body.
+ * <p/>
+ * All phrases are searched at once with an Aho-Corasick automaton built from {@link Command#values()}, so a new
+ * command is recognized without changes here. The automaton works on a normalized body, lower case with every run of
+ * non-word characters replaced by a single space. A match in the normalized body is only a candidate, it is confirmed
+ * with the exact check the player has always used, so the recognized comments don't change:
+ * <ul>
+ * <li>a command has to be at the start of the comment, like {@link String#startsWith(String)}</li>
+ * <li>a deprecated phrase has to match its regular expression, for example {@code ok\W+to\W+test}</li>
+ * <li>a {@link Marker marker} has to be contained as is</li>
+ * </ul>
+ */
+class CommandScanner {
+
+    /**
+     * Phrases of the comments posted by the player.
+     */
+    enum Marker {
+        TRIGGERING("triggering"),
+        RUNNING("running"),
+        VERIFY_THIS_PATCH("verify this patch");
+
+        private final String phrase;
+
+        Marker(final String phrase) {
+            this.phrase = phrase;
+        }
+    }
+
+    // old control strings, deprecated
+    private static final Pattern OK_TO_TEST = Pattern.compile("ok\\W+to\\W+test");
+    private static final Pattern RETEST = Pattern.compile("retest\\W+this\\W+please", Pattern.CASE_INSENSITIVE);
+
+    // a-z, 0-9, _ and the space non-word characters are replaced with
+    private static final int ALPHABET = 38;
+    private static final int SPACE = 37;
+
+    private static final int[][] transitions;
+    private static final Target[][] outputs;
+
+    static {
+        final List<Target> targets = new ArrayList<>();
+        for (Command command : Command.values()) {
+            targets.add(new Target(command.getCommand(), Kind.COMMAND, command, null, null));
+        }
+        targets.add(new Target("ok to test", Kind.PHRASE, Command.OK_TO_TEST, null, OK_TO_TEST));
+        targets.add(new Target("retest this please", Kind.PHRASE, Command.RETEST, null, RETEST));
+        for (Marker marker : Marker.values()) {
+            targets.add(new Target(marker.phrase, Kind.MARKER, null, marker, null));
+        }
+        final Automaton automaton = new Automaton(targets);
+        transitions = automaton.transitions;
+        outputs = automaton.outputs;
+    }
+
+    private CommandScanner() {
+    }
+
+    /**
+     * Scans the body of a comment.
+     *
+     * @param body the body of the comment
+     *
+     * @return what was found in the comment
+     */
+    static Scan scan(final String body) {
+        final Scan result = new Scan();
+        if (body == null) {
+            return result;
+        }
+        int state = 0;
+        // the length of the normalized body read so far
+        int position = 0;
+        boolean space = false;
+        for (int i = 0; i < body.length(); i++) {
+            final int symbol = symbol(body.charAt(i));
+            if (symbol == SPACE) {
+                if (space) {
+                    continue;
+                }
+                space = true;
+            } else {
+                space = false;
+            }
+            position++;
+            state = transitions[state][symbol];
+            final Target[] found = outputs[state];
+            if (found != null) {
+                for (Target target : found) {
+                    target.confirm(body, position, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int symbol(final char c) {
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a';
+        } else if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        } else if (c >= '0' && c <= '9') {
+            return 26 + c - '0';
+        } else if (c == '_') {
+            return 36;
+        }
+        return SPACE;
+    }
+
+    /**
+     * What was found in a comment.
+     */
+    static class Scan {
+        private final EnumSet<Command> commands = EnumSet.noneOf(Command.class);
+        private final EnumSet<Command> phrases = EnumSet.noneOf(Command.class);
+        private final EnumSet<Marker> markers = EnumSet.noneOf(Marker.class);
+
+        /**
+         * @return {@code true} if the comment starts with the command
+         */
+        boolean has(final Command command) {
+            return commands.contains(command);
+        }
+
+        /**
+         * @return {@code true} if the comment contains the deprecated phrase of the command
+         */
+        boolean hasPhrase(final Command command) {
+            return phrases.contains(command);
+        }
+
+        /**
+         * @return {@code true} if the comment contains the marker
+         */
+        boolean has(final Marker marker) {
+            return markers.contains(marker);
+        }
+
+        /**
+         * @return {@code true} if nothing was found
+         */
+        boolean isEmpty() {
+            return commands.isEmpty() && phrases.isEmpty() && markers.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "Scan: {commands: " + commands + ", phrases: " + phrases + ", markers: " + markers + "}";
+        }
+    }
+
+    private enum Kind {
+        COMMAND,
+        PHRASE,
+        MARKER,
+    }
+
+    private static class Target {
+        final String text;
+        final int length;
+        final Kind kind;
+        final Command command;
+        final Marker marker;
+        final Pattern pattern;
+
+        Target(final String text, final Kind kind, final Command command, final Marker marker, final Pattern pattern) {
+            this.text = text;
+            this.kind = kind;
+            this.command = command;
+            this.marker = marker;
+            this.pattern = pattern;
+            this.length = normalize(text).length;
+        }
+
+        /**
+         * Confirms a candidate match ending at the given position of the normalized body.
+         */
+        void confirm(final String body, final int position, final Scan result) {
+            switch (kind) {
+                case COMMAND:
+                    if (position == length && body.startsWith(text)) {
+                        result.commands.add(command);
+                    }
+                    break;
+                case PHRASE:
+                    if (!result.phrases.contains(command) && pattern.matcher(body).find()) {
+                        result.phrases.add(command);
+                    }
+                    break;
+                case MARKER:
+                    if (!result.markers.contains(marker) && body.contains(text)) {
+                        result.markers.add(marker);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static int[] normalize(final String text) {
+        final int[] result = new int[text.length()];
+        int length = 0;
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            final int symbol = symbol(text.charAt(i));
+            if (symbol == SPACE && space) {
+                continue;
+            }
+            space = symbol == SPACE;
+            result[length++] = symbol;
+        }
+        return Arrays.copyOf(result, length);
+    }
+
+    /**
+     * Builds the transition table of the automaton, following the failure links up front so scanning only needs one
+     * table lookup per character.
+     */
+    private static class Automaton {
+        final int[][] transitions;
+        final Target[][] outputs;
+
+        Automaton(final List<Target> targets) {
+            final List<int[]> next = new ArrayList<>();
+            final List<List<Target>> found = new ArrayList<>();
+            next.add(newState());
+            found.add(new ArrayList<>());
+            for (Target target : targets) {
+                int state = 0;
+                for (int symbol : normalize(target.text)) {
+                    if (next.get(state)[symbol] < 0) {
+                        next.get(state)[symbol] = next.size();
+                        next.add(newState());
+                        found.add(new ArrayList<>());
+                    }
+                    state = next.get(state)[symbol];
+                }
+                found.get(state).add(target);
+            }
+            final int[] fail = new int[next.size()];
+            final Queue<Integer> queue = new ArrayDeque<>();
+            for (int symbol = 0; symbol < ALPHABET; symbol++) {
+                final int child = next.get(0)[symbol];
+                if (child < 0) {
+                    next.get(0)[symbol] = 0;
+                } else {
+                    fail[child] = 0;
+                    queue.add(child);
+                }
+            }
+            while (!queue.isEmpty()) {
+                final int state = queue.remove();
+                found.get(state).addAll(found.get(fail[state]));
+                for (int symbol = 0; symbol < ALPHABET; symbol++) {
+                    final int child = next.get(state)[symbol];
+                    if (child < 0) {
+                        next.get(state)[symbol] = next.get(fail[state])[symbol];
+                    } else {
+                        fail[child] = next.get(fail[state])[symbol];
+                        queue.add(child);
+                    }
+                }
+            }
+            transitions = next.toArray(new int[0][]);
+            outputs = new Target[found.size()][];
+            for (int i = 0; i < found.size(); i++) {
+                if (!found.get(i).isEmpty()) {
+                    outputs[i] = found.get(i).toArray(new Target[0]);
+                }
+            }
+        }
+
+        private static int[] newState() {
+            final int[] state = new int[ALPHABET];
+            Arrays.fill(state, -1);
+            return state;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.jboss.pull.player;
 
+import java.io.IOException;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 
@@ -12,11 +13,111 @@ class Comment {
     final String user;
     final String comment;
     final Instant created;
+    /**
+     * {@code null} if the response didn't contain the time of the last update
+     */
+    final Instant updated;
+    /**
+     * The number of the issue or pull request, -1 if the response didn't contain it
+     */
+    final int issue;
 
     Comment(String user, String comment, String createdAt, String id) {
+        this(user, comment, createdAt, null, id, -1);
+    }
+
+    private Comment(String user, String comment, String createdAt, String updatedAt, String id, int issue) {
         this.user = user;
         this.comment = comment;
         this.created = ZonedDateTime.parse(createdAt).toInstant();
+        this.updated = updatedAt == null ? null : ZonedDateTime.parse(updatedAt).toInstant();
         this.id = id;
+        this.issue = issue;
+    }
+
+    /**
+     * Reads a comment in the format of the REST API.
+     *
+     * @param reader the reader positioned at the comment object
+     *
+     * @return the comment
+     */
+    static Comment read(JsonReader reader) throws IOException {
+        String id = null;
+        String user = null;
+        String body = "";
+        String createdAt = null;
+        String updatedAt = null;
+        int issue = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    id = reader.nextString();
+                    break;
+                case "user":
+                    user = reader.nextNestedString("login");
+                    break;
+                case "body":
+                    body = reader.nextString();
+                    break;
+                case "created_at":
+                    createdAt = reader.nextString();
+                    break;
+                case "updated_at":
+                    updatedAt = reader.nextString();
+                    break;
+                case "issue_url":
+                    // https://api.github.com/repos/{owner}/{repo}/issues/{number}
+                    final String issueUrl = reader.nextString();
+                    if (issueUrl != null) {
+                        issue = Integer.parseInt(issueUrl.substring(issueUrl.lastIndexOf('/') + 1));
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new Comment(user, body == null ? "" : body, createdAt, updatedAt, id, issue);
+    }
+
+    /**
+     * Reads a comment returned by the GraphQL query of {@link GitHubApi}.
+     *
+     * @param reader the reader positioned at the comment object
+     *
+     * @return the comment
+     */
+    static Comment readGraphQL(JsonReader reader) throws IOException {
+        String id = null;
+        // deleted users are returned without an author
+        String user = "ghost";
+        String body = "";
+        String createdAt = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "databaseId":
+                    id = reader.nextString();
+                    break;
+                case "author":
+                    final String login = reader.nextNestedString("login");
+                    if (login != null) {
+                        user = login;
+                    }
+                    break;
+                case "body":
+                    body = reader.nextString();
+                    break;
+                case "createdAt":
+                    createdAt = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new Comment(user, body == null ? "" : body, createdAt, id);
     }
 }
@@ -0,0 +1,251 @@
+package org.jboss.pull.player;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Deletes the comments of the bot on all issues and pull requests of the repository.
+ * <p/>
+ * The comments are found with the repository wide comments listing instead of listing the comments of every issue,
+ * which takes a request per 100 comments instead of at least one per issue. The whole listing is read before anything
+ * is deleted, deleting comments would shift the later pages. The comments are then deleted by at most
+ * {@code cleanup.threads} requests at a time with at least {@code cleanup.delete.interval} milliseconds between two
+ * deletions, as GitHub asks for requests changing content so they don't hit the secondary rate limit. Deletions which
+ * hit a rate limit anyway are retried later. A comment is only forgotten once it is gone or GitHub refused to delete
+ * it, if the rate limit budget runs out or a request fails the run stops and the comments left are deleted by the next
+ * run.
+ * <p/>
+ * Progress is kept in {@code comment-cleanup.json}: the time of the last update of the comments listed so far and the
+ * comments left to delete. An interrupted run continues where it stopped and later runs only list the comments updated
+ * since the last run. A run can be limited in time, it then stops listing and deleting once the time is up and the
+ * next run continues from the progress kept, so thousands of comments are cleaned up over several runs.
+ */
+class CommentCleaner {
+    private static final int MAX_ATTEMPTS = 3;
+    // the progress is written after this many deletions
+    private static final int SAVE_INTERVAL = 20;
+
+    private final GitHubApi api;
+    private final String githubLogin;
+    private final Path file;
+    private final int threads;
+    private final long interval;
+    private final boolean dryRun;
+    private final Set<String> pending = new LinkedHashSet<>();
+    private Instant since = Instant.EPOCH;
+    // the System.nanoTime() at which the current run stops, if it is limited
+    private Long deadline;
+    // why the current run stopped before deleting all comments, null while it goes on
+    private volatile String stopped;
+    private int deleted;
+    private int failed;
+
+    /**
+     * Creates a cleaner.
+     *
+     * @param api         the API to list and delete the comments with
+     * @param githubLogin the login of the bot, only its comments are deleted
+     * @param file        the file the progress is kept in
+     * @param threads     the maximum number of deletions in flight
+     * @param interval    the minimum time between two deletions in milliseconds
+     * @param dryRun      {@code true} to not record any progress, the API doesn't delete anything either
+     */
+    CommentCleaner(final GitHubApi api, final String githubLogin, final Path file, final int threads, final long interval, final boolean dryRun) {
+        this.api = api;
+        this.githubLogin = githubLogin;
+        this.file = file;
+        this.threads = Math.max(1, threads);
+        this.interval = interval;
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * Lists the comments updated since the last run and deletes the ones of the bot, including the ones left by an
+     * interrupted run.
+     */
+    void run() {
+        run(null);
+    }
+
+    /**
+     * Like {@link #run()}, but stops once the given time is up, leaving the rest to the next run.
+     *
+     * @param limit the maximum duration of the run, {@code null} to run until all comments have been deleted
+     */
+    void run(final Duration limit) {
+        deadline = limit == null ? null : System.nanoTime() + limit.toNanos();
+        stopped = null;
+        load();
+        if (!pending.isEmpty()) {
+            System.out.printf("Resuming the cleanup, %d comments left to delete%n", pending.size());
+        }
+        final long start = System.nanoTime();
+        final int[] listed = new int[1];
+        api.readRepositoryComments(since, comments -> {
+            for (Comment comment : comments) {
+                if (githubLogin.equals(comment.user)) {
+                    pending.add(comment.id);
+                }
+                if (comment.updated != null && comment.updated.isAfter(since)) {
+                    since = comment.updated;
+                }
+            }
+            listed[0] += comments.size();
+            save();
+            return !expired();
+        });
+        System.out.printf("Listed %d comments, %d comments of %s to delete%n", listed[0], pending.size(), githubLogin);
+        delete();
+        save();
+        EventLog.log(EventLog.Level.INFO, "cleanup.completed", -1, System.nanoTime() - start, "listed", listed[0],
+                "deleted", deleted, "failed", failed, "left", pending.size(), "expired", expired(), "stopped", stopped);
+        System.out.printf("Deleted %d comments, %d could not be deleted%n", deleted, failed);
+        if (stopped != null) {
+            System.out.printf("Cleanup stopped, %s, %d comments left for the next run%n", stopped, pending.size());
+        } else if (expired()) {
+            System.out.printf("Cleanup stopped after %d seconds, %d comments left for the next run%n", limit.getSeconds(), pending.size());
+        }
+    }
+
+    private boolean stopping() {
+        return stopped != null || expired();
+    }
+
+    private boolean expired() {
+        return deadline != null && System.nanoTime() - deadline >= 0;
+    }
+
+    private void delete() {
+        final Queue<String> queue = new ConcurrentLinkedQueue<>(pending);
+        final Map<String, Integer> attempts = new HashMap<>();
+        final Semaphore permits = new Semaphore(threads);
+        long next = 0;
+        try {
+            while (true) {
+                permits.acquire();
+                final String id = stopping() ? null : queue.poll();
+                if (id == null) {
+                    // wait for the deletions in flight, rate limited ones are queued again before their permit is released
+                    permits.acquire(threads - 1);
+                    final boolean done = queue.isEmpty() || stopping();
+                    permits.release(threads);
+                    if (done) {
+                        return;
+                    }
+                    continue;
+                }
+                final long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                next = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(interval);
+                final int attempt = attempts.merge(id, 1, Integer::sum);
+                api.deleteCommentAsync(id).whenComplete((status, error) -> {
+                    try {
+                        final int code = status == null ? -1 : status;
+                        final boolean rateLimited = code == HttpURLConnection.HTTP_FORBIDDEN || code == 429;
+                        if (error != null) {
+                            // the budget is down to the reserve or the request could not be made, the comment stays
+                            // pending for the next run
+                            stopped = String.valueOf(error.getMessage());
+                        } else if (code == HttpURLConnection.HTTP_NO_CONTENT || code == HttpURLConnection.HTTP_NOT_FOUND) {
+                            // a comment which is gone already doesn't need deleting
+                            deleted(id, true);
+                        } else if (rateLimited && attempt < MAX_ATTEMPTS) {
+                            // the budget holds further requests until the limit is lifted
+                            queue.add(id);
+                        } else if (rateLimited || code < 400 || code >= 500) {
+                            stopped = code < 0 ? "the request failed" : "GitHub answered " + code;
+                        } else {
+                            // refused for good, trying again won't help
+                            deleted(id, false);
+                        }
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while deleting comments", e);
+        }
+    }
+
+    private synchronized void deleted(final String id, final boolean success) {
+        pending.remove(id);
+        if (success) {
+            deleted++;
+        } else {
+            failed++;
+            EventLog.log(EventLog.Level.WARN, "cleanup.delete-failed", -1, -1, "comment", id);
+        }
+        if ((deleted + failed) % SAVE_INTERVAL == 0) {
+            save();
+        }
+    }
+
+    private synchronized void load() {
+        pending.clear();
+        since = Instant.EPOCH;
+        deleted = 0;
+        failed = 0;
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            final ModelNode node = ModelNode.fromJSONStream(in);
+            if (node.hasDefined("since")) {
+                since = Instant.parse(node.get("since").asString());
+            }
+            if (node.hasDefined("pending")) {
+                for (ModelNode id : node.get("pending").asList()) {
+                    pending.add(id.asString());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not load the cleanup progress, all comments will be listed: " + e);
+            pending.clear();
+            since = Instant.EPOCH;
+        }
+    }
+
+    private synchronized void save() {
+        if (dryRun) {
+            return;
+        }
+        final ModelNode node = new ModelNode();
+        node.get("since").set(since.toString());
+        final ModelNode ids = node.get("pending").setEmptyList();
+        for (String id : pending) {
+            ids.add(id);
+        }
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(tmp, StandardCharsets.UTF_8))) {
+                node.writeJSONString(writer, true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the progress is written again after the next deletions
+            e.printStackTrace(System.err);
+        }
+    }
+}
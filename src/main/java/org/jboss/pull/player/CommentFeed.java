@@ -0,0 +1,268 @@
+package org.jboss.pull.player;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.Property;
+
+/**
+ * Keeps a small summary of the comments of every open pull request, so the comment history doesn't have to be read
+ * again each cycle.
+ * <p/>
+ * Each cycle {@link #update(GitHubApi) reads} the comments created or updated on the whole repository since the last
+ * cycle and adds them to the summary of their pull request. A pull request without a summary, because it is new or
+ * the feed was just enabled, is summarized from all of its comments once. The summaries and the time of the last
+ * comment read are stored in {@code comment-feed.json}.
+ * <p/>
+ * If the feed is disabled, nothing is stored and the summaries are built from the comments read each cycle.
+ */
+class CommentFeed {
+    // comments may become visible in the API a little after their update time
+    private static final long OVERLAP_SECONDS = 60;
+
+    private final Path file;
+    private final boolean enabled;
+    private final String botLogin;
+    private final PersistentList whiteList;
+    private final PersistentList adminList;
+    private final Map<Integer, Summary> summaries = new ConcurrentHashMap<>();
+    private volatile Instant since;
+    private volatile boolean dirty;
+
+    /**
+     * Creates the feed and loads the stored summaries.
+     *
+     * @param file      the file the summaries are stored in
+     * @param enabled   {@code false} to summarize the comments read each cycle without storing them
+     * @param botLogin  the login the player posts comments with
+     * @param whiteList the users allowed to run tests
+     * @param adminList the users allowed to approve other users
+     */
+    CommentFeed(final Path file, final boolean enabled, final String botLogin, final PersistentList whiteList, final PersistentList adminList) {
+        this.file = file;
+        this.enabled = enabled;
+        this.botLogin = botLogin;
+        this.whiteList = whiteList;
+        this.adminList = adminList;
+        if (enabled && Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                final ModelNode node = ModelNode.fromJSONStream(in);
+                if (node.hasDefined("since")) {
+                    since = Instant.parse(node.get("since").asString());
+                }
+                if (node.hasDefined("pulls")) {
+                    for (Property property : node.get("pulls").asPropertyList()) {
+                        summaries.put(Integer.parseInt(property.getName()), Summary.fromModel(property.getValue()));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Could not load the comment feed, all comments will be read again: " + e);
+                since = null;
+                summaries.clear();
+            }
+        }
+    }
+
+    /**
+     * Reads the comments updated since the last cycle and adds them to the summaries of their pull requests. The first
+     * time only the start is recorded, the pull requests are summarized from all their comments when processed.
+     *
+     * @param api the API to read the comments with
+     */
+    void update(final GitHubApi api) {
+        if (!enabled) {
+            return;
+        }
+        final Instant since = this.since;
+        if (since == null) {
+            this.since = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+            dirty = true;
+            return;
+        }
+        Instant last = since;
+        int count = 0;
+        for (Comment comment : api.getRepositoryComments(since.minusSeconds(OVERLAP_SECONDS))) {
+            final Summary summary = summaries.get(comment.issue);
+            // pull requests without a summary read all their comments when processed
+            if (summary != null) {
+                add(summary, comment);
+                count++;
+            }
+            if (comment.updated != null && comment.updated.isAfter(last)) {
+                last = comment.updated;
+            }
+        }
+        this.since = last;
+        dirty = true;
+        System.out.printf("Comment feed: %d new comments on %d pull requests since %s%n", count, summaries.size(), since);
+    }
+
+    /**
+     * @return the summary of the pull request or {@code null} if it has to be built from all of its comments
+     */
+    Summary get(final int pull) {
+        return enabled ? summaries.get(pull) : null;
+    }
+
+    /**
+     * Summarizes all comments of a pull request, replacing the existing summary.
+     *
+     * @param pull     the number of the pull request
+     * @param comments all comments of the pull request
+     *
+     * @return the summary
+     */
+    Summary summarize(final int pull, final List<Comment> comments) {
+        final Summary summary = new Summary();
+        for (Comment comment : comments) {
+            add(summary, comment);
+        }
+        if (enabled) {
+            summaries.put(pull, summary);
+            dirty = true;
+        }
+        return summary;
+    }
+
+    /**
+     * Drops the summaries of the pull requests which are no longer open.
+     *
+     * @param openPulls the numbers of all open pull requests
+     */
+    void retain(final Set<Integer> openPulls) {
+        if (summaries.keySet().retainAll(openPulls)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Writes the summaries if they have changed.
+     *
+     * @throws IOException if the file could not be written
+     */
+    void save() throws IOException {
+        if (!enabled || !dirty) {
+            return;
+        }
+        dirty = false;
+        final ModelNode node = new ModelNode();
+        node.get("since").set(since.toString());
+        final ModelNode pulls = node.get("pulls").setEmptyObject();
+        for (Map.Entry<Integer, Summary> entry : summaries.entrySet()) {
+            pulls.get(String.valueOf(entry.getKey())).set(entry.getValue().toModel());
+        }
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(tmp, StandardCharsets.UTF_8))) {
+            node.writeJSONString(writer, true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Adds a comment to the summary if it is a command of a user allowed to give it or a comment of the player.
+     */
+    private void add(final Summary summary, final Comment comment) {
+        final CommandScanner.Scan scan = CommandScanner.scan(comment.comment);
+        if (scan.isEmpty()) {
+            return;
+        }
+        synchronized (summary) {
+            if ((scan.has(Command.RETEST) || scan.hasPhrase(Command.RETEST)) && whiteList.has(comment.user)) {
+                summary.retest = latest(summary.retest, comment.created);
+            }
+            if (scan.has(Command.OK_TO_TEST)) {
+                summary.okToTest = latest(summary.okToTest, comment.created);
+            } else if (scan.hasPhrase(Command.OK_TO_TEST) && adminList.has(comment.user)) {
+                summary.okToTestPhrase = latest(summary.okToTestPhrase, comment.created);
+            }
+            if (scan.has(Command.RETEST_FAILED) && adminList.has(comment.user)) {
+                summary.retestFailed = latest(summary.retestFailed, comment.created);
+            }
+            if (botLogin.equals(comment.user)) {
+                if (scan.has(CommandScanner.Marker.TRIGGERING) || scan.has(CommandScanner.Marker.RUNNING)) {
+                    summary.triggered = latest(summary.triggered, comment.created);
+                } else if (scan.has(CommandScanner.Marker.VERIFY_THIS_PATCH)) {
+                    summary.verifyRequested = latest(summary.verifyRequested, comment.created);
+                }
+            }
+        }
+    }
+
+    private static Instant latest(final Instant current, final Instant time) {
+        return current == null || time.isAfter(current) ? time : current;
+    }
+
+    /**
+     * The time of the latest comment of each kind on a pull request, {@code null} if there is none.
+     */
+    static class Summary {
+        /**
+         * A retest requested by a user on the white list
+         */
+        Instant retest;
+        /**
+         * An {@link Command#OK_TO_TEST} command at the start of a comment
+         */
+        Instant okToTest;
+        /**
+         * The deprecated ok to test phrase used by an admin
+         */
+        Instant okToTestPhrase;
+        /**
+         * A {@link Command#RETEST_FAILED} command of an admin
+         */
+        Instant retestFailed;
+        /**
+         * A comment of the player saying a build is triggered or running
+         */
+        Instant triggered;
+        /**
+         * A comment of the player asking an admin to verify the pull request
+         */
+        Instant verifyRequested;
+
+        private synchronized ModelNode toModel() {
+            final ModelNode node = new ModelNode().setEmptyObject();
+            set(node, "retest", retest);
+            set(node, "ok-to-test", okToTest);
+            set(node, "ok-to-test-phrase", okToTestPhrase);
+            set(node, "retest-failed", retestFailed);
+            set(node, "triggered", triggered);
+            set(node, "verify-requested", verifyRequested);
+            return node;
+        }
+
+        private static Summary fromModel(final ModelNode node) {
+            final Summary summary = new Summary();
+            summary.retest = get(node, "retest");
+            summary.okToTest = get(node, "ok-to-test");
+            summary.okToTestPhrase = get(node, "ok-to-test-phrase");
+            summary.retestFailed = get(node, "retest-failed");
+            summary.triggered = get(node, "triggered");
+            summary.verifyRequested = get(node, "verify-requested");
+            return summary;
+        }
+
+        private static void set(final ModelNode node, final String name, final Instant value) {
+            if (value != null) {
+                node.get(name).set(value.toString());
+            }
+        }
+
+        private static Instant get(final ModelNode node, final String name) {
+            return node.hasDefined(name) ? Instant.parse(node.get(name).asString()) : null;
+        }
+    }
+}
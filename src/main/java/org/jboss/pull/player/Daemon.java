@@ -0,0 +1,166 @@
+package org.jboss.pull.player;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the pull request check, the labeler and the cleaner from a single long running process.
+ * <p/>
+ * Each cycle has its own schedule in seconds, a schedule of 0 or less disables the cycle. Cycles never overlap, they
+ * share the HTTP clients, the ETag cache and the white and admin lists which are kept in memory between cycles. State
+ * is written to disk after every cycle and on shutdown. Every cycle handles all {@link Repositories repositories}.
+ * <p/>
+ * If {@code webhook.port} is set, pull requests are also processed as soon as GitHub delivers a {@code pull_request} or
+ * {@code issue_comment} event for them, and the check cycle becomes a low frequency reconciliation.
+ * <p/>
+ * The metrics are registered as an MXBean and, if {@code metrics.port} is set, served in the Prometheus text format on
+ * {@code /metrics}.
+ */
+public class Daemon {
+
+    private final Repositories repositories;
+    private final ScheduledExecutorService scheduler;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final AtomicBoolean webhookDrainScheduled = new AtomicBoolean();
+    private final WebhookReceiver webhookReceiver;
+    private final int webhookDelay;
+    private final int metricsPort;
+
+    Daemon(final Repositories repositories) throws IOException {
+        this.repositories = repositories;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "pull-player-daemon"));
+        final int webhookPort = Util.optionalInt("webhook.port", 0);
+        if (webhookPort > 0) {
+            webhookReceiver = new WebhookReceiver(webhookPort, Util.getProperties().getProperty("webhook.path", "/webhook"),
+                    Util.require("webhook.secret"), Util.optionalInt("webhook.queue.size", 1000), repositories.getNames(), repositories::getPullsAgainst,
+                    this::scheduleWebhookDrain);
+        } else {
+            webhookReceiver = null;
+        }
+        // delay before queued webhook events are processed, so bursts of events for a pull request are coalesced
+        webhookDelay = Util.optionalInt("webhook.coalesce.delay", 2);
+        metricsPort = Util.optionalInt("metrics.port", 0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean dry = args.length == 1 && args[0].equals("--dry");
+        final Daemon daemon = new Daemon(new Repositories(dry));
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::stop, "pull-player-shutdown"));
+        daemon.start();
+        daemon.stopped.await();
+    }
+
+    void start() throws IOException {
+        System.out.println("Starting daemon at: " + PullPlayer.getTime());
+        repositories.getMetrics().start(metricsPort);
+        // with webhooks enabled polling is only needed to catch missed deliveries
+        schedule("check", Util.optionalInt("daemon.check.interval", webhookReceiver == null ? 300 : 3600), repositories::checkPullRequests);
+        schedule("label", Util.optionalInt("daemon.label.interval", 3600), () -> {
+            // the labeler reads the pull requests with GraphQL and changes the labels with the REST API
+            if (lowPriorityAllowed("label", RateLimitBudget.Resource.GRAPHQL, RateLimitBudget.Resource.CORE)) {
+                repositories.checkRebaseRequired();
+            }
+        });
+        // the cleanup is paced, a long one would hold up the other cycles, so each cycle deletes what it can in time
+        // and the next one continues
+        final Duration cleanupLimit = Duration.ofSeconds(Util.optionalInt("daemon.cleanup.max-duration", 300));
+        schedule("cleanup", Util.optionalInt("daemon.cleanup.interval", 0), () -> {
+            if (lowPriorityAllowed("cleanup", RateLimitBudget.Resource.CORE)) {
+                repositories.cleanupComments(cleanupLimit);
+            }
+        });
+        if (webhookReceiver != null) {
+            webhookReceiver.start();
+        }
+    }
+
+    void stop() {
+        if (stopped.getCount() == 0) {
+            return;
+        }
+        System.out.println("Stopping daemon at: " + PullPlayer.getTime());
+        if (webhookReceiver != null) {
+            webhookReceiver.stop();
+        }
+        scheduler.shutdown();
+        try {
+            // let a running cycle finish so its state is not lost
+            if (!scheduler.awaitTermination(5, TimeUnit.MINUTES)) {
+                System.err.println("Cycle did not complete in time, shutting down anyway");
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            repositories.cleanup();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+        repositories.getMetrics().stop();
+        System.out.println("Stopped at: " + PullPlayer.getTime());
+        stopped.countDown();
+    }
+
+    private void schedule(final String name, final int interval, final Runnable cycle) {
+        if (interval <= 0) {
+            System.out.printf("Daemon %s cycle is disabled%n", name);
+            return;
+        }
+        System.out.printf("Daemon %s cycle runs every %d seconds%n", name, interval);
+        scheduler.scheduleWithFixedDelay(() -> runCycle(name, cycle), 0, interval, TimeUnit.SECONDS);
+    }
+
+    private boolean lowPriorityAllowed(final String name, final RateLimitBudget.Resource... resources) {
+        final RateLimitBudget budget = repositories.getBudget();
+        for (RateLimitBudget.Resource resource : resources) {
+            if (!budget.allows(resource, RateLimitBudget.Priority.LOW)) {
+                System.out.printf("Skipping %s cycle to save the rate limit for pull requests, %s%n", name, budget);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void scheduleWebhookDrain() {
+        if (webhookDrainScheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.schedule(() -> runCycle("webhook", this::drainWebhooks), webhookDelay, TimeUnit.SECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down, the reconciliation on the next start will pick up the event
+                webhookDrainScheduled.set(false);
+            }
+        }
+    }
+
+    private void drainWebhooks() {
+        // events arriving from now on need another drain
+        webhookDrainScheduled.set(false);
+        final WebhookReceiver.Work work = webhookReceiver.drain();
+        repositories.checkPullRequests(work.pulls, work.reconcile);
+    }
+
+    private void runCycle(final String name, final Runnable cycle) {
+        System.out.printf("Starting %s cycle at: %s%n", name, PullPlayer.getTime());
+        final long start = System.currentTimeMillis();
+        // an exception escaping the task would cancel all further runs of the cycle
+        try {
+            cycle.run();
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+        }
+        repositories.getMetrics().cycle(name, System.currentTimeMillis() - start);
+        try {
+            repositories.flush();
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+        }
+        System.out.printf("Completed %s cycle at: %s%n", name, PullPlayer.getTime());
+    }
+}
@@ -0,0 +1,314 @@
+package org.jboss.pull.player;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A structured log of the decisions and requests of the player, written as one JSON object per line.
+ * <p/>
+ * Logging threads only put the event into a bounded ring buffer, a background thread formats the events and writes
+ * them to {@code events.log} in the state directory, rotating the file when it gets too big. Events below the
+ * configured level are dropped before anything is formatted, callers logging with extra fields on hot paths should
+ * check {@link #isEnabled(Level)} first so the fields aren't even collected. If the buffer is full the event is dropped
+ * and counted, the number of dropped events is logged once there is room again.
+ * <p/>
+ * Settings in {@code player.properties}: {@code log.level} ({@code DEBUG}, {@code INFO}, {@code WARN}, {@code ERROR} or
+ * {@code OFF}), {@code log.file} ({@code -} writes to standard out, defaults to {@code events-<shard.id>.log} for
+ * sharded instances), {@code log.max-size} in megabytes, {@code log.max-files} and {@code log.buffer}, the number of
+ * events the buffer holds.
+ */
+class EventLog {
+
+    enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        OFF
+    }
+
+    private static final Level level;
+    private static final AtomicReferenceArray<Event> buffer;
+    private static final int mask;
+    // the next slot to claim by a logging thread and the next slot to write by the writer
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong head = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+    private static final Path file;
+    private static final long maxSize;
+    private static final int maxFiles;
+    private static final Thread writerThread;
+    private static volatile boolean closed;
+
+    static {
+        level = Level.valueOf(Util.getProperties().getProperty("log.level", "INFO").trim().toUpperCase(Locale.ROOT));
+        // a power of two, so the slot of a sequence is a mask away
+        final int capacity = Integer.highestOneBit(Math.max(2, Util.optionalInt("log.buffer", 8192) - 1) << 1);
+        buffer = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+        // instances sharing the state directory each write their own log
+        final String name = Util.getProperties().getProperty("log.file",
+                Util.getProperties().getProperty("shard.dir") == null ? "events.log" : "events-" + Shards.instanceId() + ".log");
+        file = "-".equals(name) ? null : Util.BASE_DIR.toPath().resolve(name);
+        maxSize = Util.optionalInt("log.max-size", 10) * 1024L * 1024L;
+        maxFiles = Util.optionalInt("log.max-files", 5);
+        if (level == Level.OFF) {
+            writerThread = null;
+        } else {
+            writerThread = new Thread(EventLog::run, "pull-player-event-log");
+            writerThread.setDaemon(true);
+            writerThread.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(EventLog::close, "pull-player-event-log-shutdown"));
+        }
+    }
+
+    /**
+     * @return {@code true} if events of the level are written
+     */
+    static boolean isEnabled(final Level level) {
+        return level.compareTo(EventLog.level) >= 0 && level != Level.OFF;
+    }
+
+    /**
+     * Logs an event.
+     *
+     * @param level  the level of the event
+     * @param event  the name of the event, like {@code pull.decision}
+     * @param pull   the number of the pull request the event is about, -1 if none
+     * @param nanos  how long the action the event is about took, -1 if not timed
+     * @param fields alternating names and values of additional fields, formatted by the writer thread so they must not
+     *               be changed afterwards
+     */
+    static void log(final Level level, final String event, final int pull, final long nanos, final Object... fields) {
+        if (!isEnabled(level) || closed) {
+            return;
+        }
+        final Event e = new Event(System.currentTimeMillis(), level, Thread.currentThread().getName(), event, pull, nanos, fields);
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head.get() > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+        // the writer clears a slot before it moves the head past it, so the claimed slot is free
+        buffer.lazySet((int) sequence & mask, e);
+    }
+
+    /**
+     * Waits up to 5 seconds for the events logged so far to be written, used before the process exits.
+     */
+    static void flush() {
+        if (writerThread == null) {
+            return;
+        }
+        final long target = tail.get();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (head.get() < target && writerThread.isAlive() && System.nanoTime() < deadline) {
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private static void close() {
+        flush();
+        closed = true;
+        LockSupport.unpark(writerThread);
+    }
+
+    private static void run() {
+        Writer writer = null;
+        long size = 0;
+        final StringBuilder line = new StringBuilder(256);
+        while (true) {
+            try {
+                if (writer == null) {
+                    writer = open();
+                    size = file == null ? 0 : Files.size(file);
+                }
+                boolean wrote = false;
+                final long lost = dropped.sumThenReset();
+                if (lost > 0) {
+                    size += write(writer, line, new Event(System.currentTimeMillis(), Level.WARN, Thread.currentThread().getName(),
+                            "log.dropped", -1, -1, new Object[]{"count", lost}));
+                    wrote = true;
+                }
+                Event event;
+                while ((event = take()) != null) {
+                    size += write(writer, line, event);
+                    wrote = true;
+                    if (file != null && size >= maxSize) {
+                        writer.close();
+                        rotate();
+                        writer = open();
+                        size = 0;
+                    }
+                }
+                if (wrote) {
+                    writer.flush();
+                } else if (closed) {
+                    writer.close();
+                    return;
+                } else {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                }
+            } catch (IOException e) {
+                // the events in the buffer are kept, writing is tried again after a pause
+                e.printStackTrace(System.err);
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException ignore) {
+                    }
+                    writer = null;
+                }
+                if (closed) {
+                    return;
+                }
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    private static Event take() {
+        final long sequence = head.get();
+        if (sequence == tail.get()) {
+            return null;
+        }
+        final int slot = (int) sequence & mask;
+        // claimed but not yet set, the next pass picks it up
+        final Event event = buffer.get(slot);
+        if (event != null) {
+            buffer.set(slot, null);
+            head.lazySet(sequence + 1);
+        }
+        return event;
+    }
+
+    private static Writer open() throws IOException {
+        if (file == null) {
+            return new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)) {
+                @Override
+                public void close() throws IOException {
+                    // standard out stays open
+                    flush();
+                }
+            };
+        }
+        return Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private static void rotate() throws IOException {
+        Files.deleteIfExists(file.resolveSibling(file.getFileName() + "." + maxFiles));
+        for (int i = maxFiles - 1; i > 0; i--) {
+            final Path rotated = file.resolveSibling(file.getFileName() + "." + i);
+            if (Files.exists(rotated)) {
+                Files.move(rotated, file.resolveSibling(file.getFileName() + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Writes the event as a line of JSON.
+     *
+     * @return the number of characters written
+     */
+    private static int write(final Writer writer, final StringBuilder line, final Event event) throws IOException {
+        line.setLength(0);
+        line.append("{\"time\":\"").append(Instant.ofEpochMilli(event.time)).append("\",\"level\":\"").append(event.level)
+                .append("\",\"thread\":");
+        string(line, event.thread);
+        line.append(",\"event\":");
+        string(line, event.event);
+        if (event.pull >= 0) {
+            line.append(",\"pull\":").append(event.pull);
+        }
+        if (event.nanos >= 0) {
+            line.append(",\"millis\":").append(TimeUnit.NANOSECONDS.toMicros(event.nanos) / 1000.0);
+        }
+        final Object[] fields = event.fields;
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            line.append(',');
+            string(line, String.valueOf(fields[i]));
+            line.append(':');
+            final Object value = fields[i + 1];
+            if (value == null) {
+                line.append("null");
+            } else if (value instanceof Number || value instanceof Boolean) {
+                line.append(value);
+            } else {
+                string(line, value.toString());
+            }
+        }
+        line.append("}\n");
+        writer.append(line);
+        return line.length();
+    }
+
+    private static void string(final StringBuilder line, final String value) {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+            }
+        }
+        line.append('"');
+    }
+
+    private static class Event {
+        final long time;
+        final Level level;
+        final String thread;
+        final String event;
+        final int pull;
+        final long nanos;
+        final Object[] fields;
+
+        Event(final long time, final Level level, final String thread, final String event, final int pull, final long nanos, final Object[] fields) {
+            this.time = time;
+            this.level = level;
+            this.thread = thread;
+            this.event = event;
+            this.pull = pull;
+            this.nanos = nanos;
+            this.fields = fields;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.jboss.pull.player;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the tasks of several repositories on a fixed number of threads, taking turns between the repositories.
+ * <p/>
+ * Each repository submits to its own queue through {@link #forKey(String)}. The threads take one task of a repository
+ * at a time and move on to the next repository with queued tasks, so a repository with hundreds of pull requests to
+ * process only delays a repository with a few by one task per turn instead of all of its tasks.
+ */
+class FairExecutor {
+    private final Map<String, Queue<Runnable>> queues = new HashMap<>();
+    // the repositories with queued tasks, in the order of their turns
+    private final Queue<String> turns = new ArrayDeque<>();
+    private final List<Thread> threads;
+    private boolean shutdown;
+
+    /**
+     * Creates an executor and starts its threads.
+     *
+     * @param threads the number of threads
+     */
+    FairExecutor(final int threads) {
+        this.threads = new ArrayList<>(threads);
+        for (int i = 1; i <= Math.max(1, threads); i++) {
+            final Thread thread = new Thread(this::run, "pull-player-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            this.threads.add(thread);
+        }
+    }
+
+    /**
+     * @param key the repository
+     *
+     * @return an executor queueing tasks for the repository
+     */
+    Executor forKey(final String key) {
+        return task -> submit(key, task);
+    }
+
+    /**
+     * Stops accepting tasks and waits up to a minute for the queued ones to complete.
+     */
+    void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        try {
+            for (Thread thread : threads) {
+                TimeUnit.NANOSECONDS.timedJoin(thread, Math.max(1, deadline - System.nanoTime()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void submit(final String key, final Runnable task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        final Queue<Runnable> queue = queues.computeIfAbsent(key, k -> new ArrayDeque<>());
+        if (queue.isEmpty()) {
+            turns.add(key);
+        }
+        queue.add(task);
+        notify();
+    }
+
+    private synchronized Runnable take() throws InterruptedException {
+        while (turns.isEmpty()) {
+            if (shutdown) {
+                return null;
+            }
+            wait();
+        }
+        final String key = turns.poll();
+        final Queue<Runnable> queue = queues.get(key);
+        final Runnable task = queue.poll();
+        if (!queue.isEmpty()) {
+            // back to the end of the line
+            turns.add(key);
+        }
+        return task;
+    }
+
+    private void run() {
+        try {
+            Runnable task;
+            while ((task = take()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // the tasks are completable futures which keep their failure, anything else is only reported
+                    e.printStackTrace(System.err);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
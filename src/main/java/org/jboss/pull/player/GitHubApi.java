@@ -1,29 +1,26 @@
 package org.jboss.pull.player;
 
 import java.io.IOException;
-import java.io.Reader;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.time.Instant;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
-import java.util.Properties;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 
 import org.apache.http.Header;
 import org.apache.http.HeaderElement;
 import org.apache.http.HttpHeaders;
-import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.AuthCache;
 import org.apache.http.client.methods.CloseableHttpResponse;
@@ -33,50 +30,95 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
 import org.jboss.dmr.ModelNode;
-import org.jboss.dmr.Property;
+import org.jboss.pull.player.RateLimitBudget.Priority;
+import org.jboss.pull.player.RateLimitBudget.Resource;
 
 /**
  * @author Tomaz Cerar (c) 2013 Red Hat Inc.
  */
 public class GitHubApi {
-    private static final int CACHE_SIZE = 1000;
     private static final String GITHUB_API_URL = "https://api.github.com";
-    private final Path cacheFileName = Util.BASE_DIR.toPath().resolve("github-api.cache");
+    private static final int GRAPHQL_PAGE_SIZE = 50;
+    private static final int GRAPHQL_COMMENTS = 100;
+    // Selects everything the pull processing and the labeler need in a single request per page. The pull requests are
+    // ordered by the last update so paging can stop at the first pull request which has not changed.
+    private static final String PULL_REQUESTS_QUERY = "query($owner: String!, $name: String!, $first: Int!, $comments: Int!, $after: String) {"
+            + " repository(owner: $owner, name: $name) {"
+            + "  pullRequests(states: OPEN, first: $first, after: $after, orderBy: {field: UPDATED_AT, direction: DESC}) {"
+            + "   pageInfo { hasNextPage endCursor }"
+            + "   nodes {"
+            + "    number updatedAt url headRefOid baseRefName mergeable mergeStateStatus"
+            + "    author { login }"
+            + "    potentialMergeCommit { oid }"
+            + "    labels(first: 100) { nodes { name } }"
+            + "    comments(last: $comments) { totalCount nodes { databaseId body createdAt author { login } } }"
+            + "   }"
+            + "  }"
+            + " }"
+            + "}";
+    // Only the numbers of the open pull requests, to know which ones are still open when the pull requests were only
+    // queried since the last check
+    private static final String OPEN_PULL_REQUESTS_QUERY = "query($owner: String!, $name: String!, $after: String) {"
+            + " repository(owner: $owner, name: $name) {"
+            + "  pullRequests(states: OPEN, first: 100, after: $after) {"
+            + "   pageInfo { hasNextPage endCursor }"
+            + "   nodes { number }"
+            + "  }"
+            + " }"
+            + "}";
     private final CloseableHttpClient httpClient;
+    private final HttpTransport transport;
+    private final String apiUrl;
     private final String baseUrl;
+    private final String repository;
     private final boolean dryRun;
-    private final AtomicBoolean cacheDirty = new AtomicBoolean(false);
-    private final Properties cache = getCache();
+    private final RateLimitBudget budget;
+    private final HttpCache httpCache;
+    private final boolean ownsTransport;
+    private volatile Set<Integer> openPullRequests;
 
     public GitHubApi(String authToken, String repository, boolean dryRun) {
-        this.dryRun = dryRun;
-        this.baseUrl = GITHUB_API_URL + "/repos/" + repository;
-        this.httpClient = createHttpClient(authToken);
+        this(authToken, repository, dryRun, new RateLimitBudget(500, 60),
+                new HttpCache(Util.BASE_DIR.toPath().resolve("http-cache.bin"), 1000, 1024 * 1024), HttpTransport.create(1), true);
     }
 
-    private Properties getCache() {
-        Properties p = new Properties();
-        if (Files.exists(cacheFileName)) {
-            try (Reader r = Files.newBufferedReader(cacheFileName, StandardCharsets.UTF_8)) {
-                p.load(r);
-            } catch (IOException e) {
-                System.out.println("could not load cache");
-                e.printStackTrace(System.out);
-            }
-        }
-        if (p.size() > CACHE_SIZE) {
-            System.out.println("Size of cache got too big, clearing out cache");
-            p.clear();
-            cacheDirty.set(true);
-        }
-        return p;
+    /**
+     * Creates the API of a repository using a shared transport, which is closed by its owner.
+     */
+    public GitHubApi(String authToken, String repository, boolean dryRun, RateLimitBudget budget, HttpCache httpCache, HttpTransport transport) {
+        this(authToken, repository, dryRun, budget, httpCache, transport, false);
+    }
+
+    private GitHubApi(String authToken, String repository, boolean dryRun, RateLimitBudget budget, HttpCache httpCache,
+                      HttpTransport transport, boolean ownsTransport) {
+        this.dryRun = dryRun;
+        this.budget = budget;
+        this.httpCache = httpCache;
+        this.transport = transport;
+        this.ownsTransport = ownsTransport;
+        // a GitHub Enterprise server or a replay server can be used instead of github.com
+        this.apiUrl = Util.getProperties().getProperty("github.api.url", GITHUB_API_URL).replaceAll("/+$", "");
+        this.baseUrl = apiUrl + "/repos/" + repository;
+        this.repository = repository;
+        this.httpClient = createHttpClient(authToken);
+        final Metrics metrics = transport.getMetrics();
+        metrics.gauge("pull_player_http_cache_hit_ratio", "Conditional GitHub requests answered from the ETag cache", httpCache::getHitRatio);
+        metrics.gauge("pull_player_github_rate_limit_remaining", "Requests left in the GitHub REST rate limit", () -> budget.getRemaining(Resource.CORE));
+        metrics.gauge("pull_player_github_rate_limit", "The GitHub REST rate limit", () -> budget.getLimit(Resource.CORE));
+        metrics.gauge("pull_player_github_graphql_rate_limit_remaining", "Points left in the GitHub GraphQL rate limit", () -> budget.getRemaining(Resource.GRAPHQL));
+        metrics.gauge("pull_player_github_graphql_rate_limit", "The GitHub GraphQL rate limit", () -> budget.getLimit(Resource.GRAPHQL));
     }
 
     List<Comment> getComments(final String commentsUrl) {
@@ -91,18 +133,11 @@ public class GitHubApi {
                 if (notModified(response)) {
                     return null;
                 }
-                ModelNode node = ModelNode.fromJSONStream(response.getEntity().getContent());
-                List<ModelNode> modelNodes = node.asList();
-                if (modelNodes.size() == 0) {
-                    continue;
-                }
                 /*
                    "created_at" => "2015-09-01T15:35:01Z",
                     "updated_at" => "2015-09-01T15:35:01Z",
                  */
-                for (ModelNode comment : modelNodes) {
-                    comments.add(create(comment));
-                }
+                comments.addAll(readArray(response, Comment::read));
                 get.releaseConnection();
                 get = null;
             }
@@ -118,12 +153,107 @@ public class GitHubApi {
     }
 
     /**
-     * @return returns all pull requests that might need processing
+     * Gets the comments on all issues and pull requests of the repository created or updated since the given time,
+     * oldest first.
+     *
+     * @param since the time of the last update of the comments to return
+     *
+     * @return the comments
+     */
+    List<Comment> getRepositoryComments(final Instant since) {
+        final List<Comment> comments = new ArrayList<>();
+        String url = baseUrl + "/issues/comments?sort=updated&direction=asc&per_page=100&since=" + since;
+        try {
+            while (url != null) {
+                final HttpGet get = new HttpGet(url);
+                try (CloseableHttpResponse response = execute(get)) {
+                    url = nextLink(response);
+                    if (notModified(response)) {
+                        break;
+                    }
+                    comments.addAll(readArray(response, Comment::read));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return comments;
+    }
+
+    /**
+     * Reads the comments on all issues and pull requests of the repository updated since the given time one page at a
+     * time, oldest first, at low priority.
+     *
+     * @param since the time of the last update of the first comments to read
+     * @param page  receives each page of comments once it has been read, returns {@code false} to stop reading
      */
-    List<ModelNode> getPullRequests() {
+    void readRepositoryComments(final Instant since, final Predicate<List<Comment>> page) {
+        String url = baseUrl + "/issues/comments?sort=updated&direction=asc&per_page=100&since=" + since;
+        try {
+            while (url != null) {
+                final HttpGet get = new HttpGet(url);
+                final List<Comment> comments;
+                try (CloseableHttpResponse response = execute(get, Priority.LOW)) {
+                    if (response.getStatusLine().getStatusCode() != HttpURLConnection.HTTP_OK) {
+                        throw new IllegalStateException("Could not list the comments: " + response.getStatusLine());
+                    }
+                    url = nextLink(response);
+                    comments = readArray(response, Comment::read);
+                }
+                if (!page.test(comments)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Fetches the comments of the pull request on the request threads, if they were not fetched with it.
+     */
+    CompletableFuture<List<Comment>> getCommentsAsync(final PullRequest pull) {
+        if (pull.comments != null) {
+            return CompletableFuture.completedFuture(pull.comments);
+        }
+        return transport.async(() -> getComments(pull.commentsUrl));
+    }
+
+    /**
+     * Gets the comments for the pull request. Comments already fetched with the pull request are used, otherwise they
+     * are requested from GitHub.
+     *
+     * @param pull the pull request
+     *
+     * @return the comments or {@code null} if the comments have not been modified since they were last requested
+     */
+    List<Comment> getComments(final PullRequest pull) {
+        if (pull.comments != null) {
+            return pull.comments;
+        }
+        return getComments(pull.commentsUrl);
+    }
+
+    /**
+     * Returns the numbers of all the open pull requests seen by the last listing of the pull requests, either
+     * {@link #getPullRequests()}, a GraphQL query which went through all open pull requests or
+     * {@link #getOpenPullRequestNumbers()}.
+     *
+     * @return the open pull requests or {@code null} if not all of them were seen
+     */
+    Set<Integer> getOpenPullRequests() {
+        return openPullRequests;
+    }
+
+    /**
+     * @return returns all open pull requests, without their mergeable state
+     */
+    List<PullRequest> getPullRequests() {
         HttpGet get = null;
-        List<ModelNode> result = new ArrayList<>();
-        String lastCheck = cache.getProperty("LAST_CHECK", ZonedDateTime.ofInstant(Instant.EPOCH, ZoneId.systemDefault()).toString());
+        List<PullRequest> result = new ArrayList<>();
+        final Set<Integer> open = new HashSet<>();
+        boolean complete = true;
+        openPullRequests = null;
         try {
             String url = baseUrl + "/pulls?state=open";
             while (url != null) {
@@ -131,14 +261,16 @@ public class GitHubApi {
                 final HttpResponse response = execute(get);
                 url = nextLink(response);
                 if (notModified(response)) {
+                    complete = false;
                     continue;
                 }
-                ModelNode node = ModelNode.fromJSONStream(response.getEntity().getContent());
-
-                Instant last = ZonedDateTime.parse(lastCheck).toInstant();
-                result.addAll(filterNonModifiedPullRequests(node.asList(), last));
+                final List<PullRequest> pulls = readArray(response, PullRequest::read);
+                for (PullRequest pull : pulls) {
+                    open.add(pull.number);
+                }
+                result.addAll(pulls);
             }
-            updateLastCheck();
+            openPullRequests = complete ? Collections.unmodifiableSet(open) : null;
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
@@ -151,14 +283,205 @@ public class GitHubApi {
     }
 
     /**
-     * @return returns all pull requests that might need processing
+     * Similar to {@link #getPullRequests()} but uses the GraphQL API and only returns the pull requests updated after
+     * the given time. The returned pull requests also contain the mergeable state, the labels and the latest comments,
+     * so no further requests are needed to process them.
+     *
+     * @param since the time of the last update of the pull requests to return
+     *
+     * @return returns the pull requests updated since the given time
+     */
+    List<PullRequest> getPullRequestsGraphQL(final Instant since) {
+        return queryPullRequests(since, Priority.HIGH);
+    }
+
+    /**
+     * Gets all open pull requests with their labels and mergeable state using the GraphQL API.
+     *
+     * @return all the open pull requests
      */
-    private ModelNode getPullRequest(String url) {
+    List<PullRequest> getAllPullRequestsGraphQL() {
+        return queryPullRequests(Instant.EPOCH, Priority.LOW);
+    }
+
+    /**
+     * Queries the open pull requests updated after the given time. Comments are only kept if all of them could be
+     * fetched.
+     */
+    private List<PullRequest> queryPullRequests(final Instant since, final Priority priority) {
+        final List<PullRequest> result = new ArrayList<>();
+        final Set<Integer> open = new HashSet<>();
+        openPullRequests = null;
+        final String[] ownerAndName = repository.split("/");
+        final ModelNode request = new ModelNode();
+        request.get("query").set(PULL_REQUESTS_QUERY);
+        final ModelNode variables = request.get("variables");
+        variables.get("owner").set(ownerAndName[0]);
+        variables.get("name").set(ownerAndName[1]);
+        variables.get("first").set(GRAPHQL_PAGE_SIZE);
+        variables.get("comments").set(GRAPHQL_COMMENTS);
+        boolean hasNext = true;
+        while (hasNext) {
+            final HttpPost post = new HttpPost(apiUrl + "/graphql");
+            try {
+                post.setEntity(new StringEntity(request.toJSONString(true), ContentType.APPLICATION_JSON));
+                final GraphQLPage page;
+                try (CloseableHttpResponse httpResponse = execute(post, priority);
+                     JsonReader reader = new JsonReader(httpResponse.getEntity().getContent())) {
+                    page = readGraphQLPage(reader);
+                }
+                for (PullRequest pull : page.pulls) {
+                    if (!pull.updatedAt.isAfter(since)) {
+                        // ordered by the last update, everything after this one is older
+                        return result;
+                    }
+                    result.add(pull);
+                    open.add(pull.number);
+                }
+                hasNext = page.hasNextPage;
+                variables.get("after").set(page.endCursor);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                post.releaseConnection();
+            }
+        }
+        // no pull request was older than since, so all of them have been seen
+        openPullRequests = Collections.unmodifiableSet(open);
+        return result;
+    }
+
+    /**
+     * Lists the numbers of all open pull requests with the GraphQL API, at low priority. Used to find the pull requests
+     * which have been closed when the pull requests are only queried since the last check.
+     *
+     * @return the numbers of the open pull requests, also returned by {@link #getOpenPullRequests()} from then on
+     */
+    Set<Integer> getOpenPullRequestNumbers() {
+        final Set<Integer> open = new HashSet<>();
+        final String[] ownerAndName = repository.split("/");
+        final ModelNode request = new ModelNode();
+        request.get("query").set(OPEN_PULL_REQUESTS_QUERY);
+        final ModelNode variables = request.get("variables");
+        variables.get("owner").set(ownerAndName[0]);
+        variables.get("name").set(ownerAndName[1]);
+        boolean hasNext = true;
+        while (hasNext) {
+            final HttpPost post = new HttpPost(apiUrl + "/graphql");
+            try {
+                post.setEntity(new StringEntity(request.toJSONString(true), ContentType.APPLICATION_JSON));
+                final ModelNode response;
+                try (CloseableHttpResponse httpResponse = execute(post, Priority.LOW);
+                     InputStream in = httpResponse.getEntity().getContent()) {
+                    response = ModelNode.fromJSONStream(in);
+                }
+                if (response.hasDefined("errors")) {
+                    throw new IllegalStateException("GraphQL query failed: " + response.get("errors"));
+                }
+                final ModelNode connection = response.get("data", "repository", "pullRequests");
+                for (ModelNode node : connection.get("nodes").asList()) {
+                    open.add(node.get("number").asInt());
+                }
+                hasNext = connection.get("pageInfo", "hasNextPage").asBoolean(false);
+                if (hasNext) {
+                    variables.get("after").set(connection.get("pageInfo", "endCursor").asString());
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                post.releaseConnection();
+            }
+        }
+        openPullRequests = Collections.unmodifiableSet(open);
+        return openPullRequests;
+    }
+
+    private GraphQLPage readGraphQLPage(final JsonReader reader) throws IOException {
+        final GraphQLPage page = new GraphQLPage();
+        final List<String> errors = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if ("errors".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    errors.add(reader.nextNestedString("message"));
+                }
+                reader.endArray();
+            } else if ("data".equals(name) && reader.peek() != JsonReader.Token.NULL) {
+                // data.repository.pullRequests
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("repository".equals(reader.nextName())) {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if ("pullRequests".equals(reader.nextName())) {
+                                readPullRequestConnection(reader, page);
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (!errors.isEmpty()) {
+            throw new IllegalStateException("GraphQL query failed: " + errors);
+        }
+        return page;
+    }
+
+    private void readPullRequestConnection(final JsonReader reader, final GraphQLPage page) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if ("pageInfo".equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    final String field = reader.nextName();
+                    if ("hasNextPage".equals(field)) {
+                        page.hasNextPage = Boolean.TRUE.equals(reader.nextBoolean());
+                    } else if ("endCursor".equals(field)) {
+                        page.endCursor = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if ("nodes".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    page.pulls.add(PullRequest.readGraphQL(reader, baseUrl, GRAPHQL_COMMENTS));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * @return returns the pull request or {@code null} if it could not be read
+     */
+    private PullRequest getPullRequest(String url) {
         HttpGet get = null;
         try {
             get = new HttpGet(url);
-            final HttpResponse response = execute(get);
-            return ModelNode.fromJSONStream(response.getEntity().getContent());
+            final HttpResponse response = execute(get, Priority.LOW);
+            if (notModified(response)) {
+                return null;
+            }
+            try (JsonReader reader = new JsonReader(response.getEntity().getContent())) {
+                return PullRequest.read(reader);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
@@ -166,14 +489,21 @@ public class GitHubApi {
                 get.releaseConnection();
             }
         }
-        return new ModelNode().setEmptyObject();
+        return null;
 
     }
 
+    /**
+     * Fetches the details of the pull request on the request threads.
+     */
+    CompletableFuture<PullRequest> getPullRequestDetailsAsync(final int pullRequest) {
+        return transport.async(() -> getPullRequestDetails(pullRequest));
+    }
+
     /**
      * @return returns the details of a particular pull request
      */
-    ModelNode getPullRequestDetails(final int pullRequest) {
+    PullRequest getPullRequestDetails(final int pullRequest) {
         HttpGet get = null;
         try {
             String url = baseUrl + "/pulls/" + pullRequest;
@@ -183,8 +513,9 @@ public class GitHubApi {
             if (notModified(response)) {
                 return null;
             }
-            ModelNode node = ModelNode.fromJSONStream(response.getEntity().getContent());
-                return node;
+            try (JsonReader reader = new JsonReader(response.getEntity().getContent())) {
+                return PullRequest.read(reader);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
@@ -195,20 +526,16 @@ public class GitHubApi {
         return null;
     }
 
-    void updateLastCheck() {
-        cache.putIfAbsent("LAST_CHECK", ZonedDateTime.now().toString());
-    }
-
-    private List<ModelNode> filterNonModifiedPullRequests(List<ModelNode> pulls, Instant lastCheck) {
-        final List<ModelNode> res = new LinkedList<>();
-        for (ModelNode pull : pulls) {
-            String updatedAtString = pull.get("updated_at").asString(); //get timestamp when was PR last updated.
-            Instant updatedAt = ZonedDateTime.parse(updatedAtString).toInstant();
-            if (updatedAt.isAfter(lastCheck)) {
-                res.add(pull);
-            }
+    /**
+     * @return the raw JSON of the pull request, as returned by GitHub
+     */
+    String getPullRequestJson(final int pullRequest) throws IOException {
+        final HttpGet get = new HttpGet(baseUrl + "/pulls/" + pullRequest);
+        try {
+            return EntityUtils.toString(execute(get).getEntity(), StandardCharsets.UTF_8);
+        } finally {
+            get.releaseConnection();
         }
-        return res;
     }
 
     private String nextLink(HttpResponse response) {
@@ -234,71 +561,60 @@ public class GitHubApi {
         final String requestUrl = baseUrl + "/issues/" + number + "/comments";
 
         final HttpPost post = new HttpPost(requestUrl);
-        try {
-            post.setEntity(new StringEntity("{\"body\": \"" + comment + "\"}"));
-            execute(post);
-            updateLastCheck();
-            post.completed();
+        post.setEntity(new StringEntity("{\"body\": \"" + comment + "\"}", StandardCharsets.UTF_8));
+        try (CloseableHttpResponse response = execute(post)) {
+            EntityUtils.consume(response.getEntity());
         } catch (Exception e) {
             e.printStackTrace(System.err);
-            post.abort();
         }
     }
 
+    /**
+     * @return the client of the GitHub server, shared by the APIs of all repositories using the same transport
+     */
     CloseableHttpClient createHttpClient(String authToken) {
-
-        return HttpClients
-                .custom()
+        return transport.client("github " + apiUrl + " " + authToken, builder -> builder
                 .setDefaultHeaders(Arrays.asList(new BasicHeader("Authorization", "token " + authToken),
                         new BasicHeader("User-Agent", "WildFly-Pull-Player")))
-                .build();
+                .build());
     }
 
 
-    public List<ModelNode> getIssuesWithPullRequests() throws IOException {
-        final List<ModelNode> pulls = new LinkedList<>();
+    public List<PullRequest> getIssuesWithPullRequests() throws IOException {
+        final List<CompletableFuture<PullRequest>> pulls = new ArrayList<>();
         try {
             // Get all the issues for the repository
             String url = baseUrl + "/issues?state=open&filter=all";
             while (url != null) {
                 final HttpGet get = new HttpGet(url);
-                final HttpResponse response = execute(get);
-                url = nextLink(response);
-                if (notModified(response)) { //noting new to do
-                    return Collections.emptyList();
-                }
-                ModelNode responseResult = ModelNode.fromJSONStream(response.getEntity().getContent());
-                for (ModelNode node : responseResult.asList()) {
-                    // We only want issues with a pull request
-                    if (node.hasDefined("pull_request") && node.hasDefined("labels")) {
-                        String prUrl = node.get("pull_request","url").asString();
-                        ModelNode pr = getPullRequest(prUrl);
-                        for (Property p : pr.asPropertyList()){//lets just copy everything
-                            node.get(p.getName()).set(p.getValue());
+                try (CloseableHttpResponse response = execute(get, Priority.LOW)) {
+                    url = nextLink(response);
+                    if (notModified(response)) { //noting new to do
+                        return Collections.emptyList();
+                    }
+                    for (Issue issue : readArray(response, Issue::read)) {
+                        // We only want issues with a pull request, they are fetched while the next page is read
+                        if (issue.pullRequestUrl != null) {
+                            pulls.add(transport.async(() -> getPullRequest(issue.pullRequestUrl)));
                         }
-                        node.remove("user");
-                        node.remove("head");
-                        node.remove("repo");
-                        node.remove("base");
-                        node.remove("_links");
-                        pulls.add(node);
                     }
                 }
             }
         } catch (Exception e) {
             e.printStackTrace(System.err);
         }
-        return pulls;
-    }
-
-    private ModelNode getLabelsForIssue(final List<ModelNode> allIssues, int number){
-        Optional<ModelNode> res =  allIssues.stream()
-                .filter(node -> node.get("number").asInt() == number)
-                .findFirst();
-        if (res.isPresent()){
-            return res.get().get("labels");
+        final List<PullRequest> result = new ArrayList<>(pulls.size());
+        for (CompletableFuture<PullRequest> pull : pulls) {
+            try {
+                final PullRequest pr = HttpTransport.join(pull);
+                if (pr != null) {
+                    result.add(pr);
+                }
+            } catch (Exception e) {
+                e.printStackTrace(System.err);
+            }
         }
-        return new ModelNode().setEmptyList();
+        return result;
     }
 
 
@@ -313,7 +629,9 @@ public class GitHubApi {
         try {
             final HttpPut put = new HttpPut(issueUrl + "/labels");
             put.setEntity(new StringEntity(sb));
-            execute(put).close();
+            try (CloseableHttpResponse response = execute(put, Priority.LOW)) {
+                EntityUtils.consume(response.getEntity());
+            }
 
         } catch (Exception e) {
             e.printStackTrace(System.err);
@@ -331,12 +649,55 @@ public class GitHubApi {
         try {
             final HttpPost put = new HttpPost(issueUrl + "/labels");
             put.setEntity(new StringEntity(sb));
-            execute(put).close();
+            try (CloseableHttpResponse response = execute(put, Priority.LOW)) {
+                EntityUtils.consume(response.getEntity());
+            }
         } catch (Exception e) {
             e.printStackTrace(System.err);
         }
     }
 
+    public void removeLabel(final String issueUrl, final String label) {
+        System.out.println("removing label for issue: " + issueUrl + ", label: " + label);
+        if (this.dryRun) {
+            System.out.println("Dry run - Not posting to github");
+            return;
+        }
+        try {
+            final HttpDelete delete = new HttpDelete(issueUrl + "/labels/" + URLEncoder.encode(label, "UTF-8").replace("+", "%20"));
+            try (CloseableHttpResponse response = execute(delete, Priority.LOW)) {
+                EntityUtils.consume(response.getEntity());
+            }
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Changes the labels of an issue with a single request on the request threads. New labels are added if none are
+     * removed, a single label is removed on its own, otherwise all labels of the issue are replaced.
+     *
+     * @param issueUrl the URL of the issue
+     * @param added    the labels to add
+     * @param removed  the labels to remove
+     * @param labels   all labels the issue should have
+     *
+     * @return completes when the labels have been changed
+     */
+    CompletableFuture<Void> changeLabelsAsync(final String issueUrl, final Collection<String> added, final Collection<String> removed,
+                                              final Collection<String> labels) {
+        return transport.async(() -> {
+            if (removed.isEmpty()) {
+                addLabels(issueUrl, added);
+            } else if (added.isEmpty() && removed.size() == 1) {
+                removeLabel(issueUrl, removed.iterator().next());
+            } else {
+                setLabels(issueUrl, labels);
+            }
+            return null;
+        });
+    }
+
     private String getLabelsArray(Collection<String> labels) {
         final StringBuilder sb = new StringBuilder(32).append('[').append('\n');
         final int size = labels.size();
@@ -358,59 +719,165 @@ public class GitHubApi {
     }
 
     private CloseableHttpResponse execute(final HttpUriRequest request) throws IOException {
+        return execute(request, Priority.HIGH);
+    }
+
+    private CloseableHttpResponse execute(final HttpUriRequest request, final Priority priority) throws IOException {
+        final CloseableHttpResponse response = send(request, priority);
+        if (!isRateLimited(response)) {
+            return response;
+        }
+        // retry once, the budget waits for the limit to be lifted or gives up if that takes too long
+        response.close();
+        return send(request, priority);
+    }
 
+    private CloseableHttpResponse send(final HttpUriRequest request, final Priority priority) throws IOException {
+        // GraphQL queries count against a rate limit of their own
+        final Resource resource = request.getURI().getPath().endsWith("/graphql") ? Resource.GRAPHQL : Resource.CORE;
+        budget.acquire(resource, priority);
+        final long start = System.nanoTime();
         AuthCache authCache = new BasicAuthCache();
-        authCache.put(HttpHost.create(GITHUB_API_URL), new BasicScheme());
+        authCache.put(URIUtils.extractHost(URI.create(apiUrl)), new BasicScheme());
         // Add AuthCache to the execution context
         final HttpClientContext context = HttpClientContext.create();
         request.setHeader(new BasicHeader(HttpHeaders.ACCEPT_ENCODING, "UTF-8"));
 
-        String cacheKey = request.getURI().toString();
-        String value = cache.getProperty(cacheKey);
-        if (request.getMethod() == HttpGet.METHOD_NAME && value != null) {
-            request.addHeader("If-None-Match", value);
+        final boolean get = HttpGet.METHOD_NAME.equals(request.getMethod());
+        final String cacheKey = request.getURI().toString();
+        final HttpCache.Entry cached = get ? httpCache.get(cacheKey) : null;
+        if (cached != null) {
+            request.setHeader("If-None-Match", cached.eTag);
         }
 
         final CloseableHttpResponse response = httpClient.execute(request, context);
         int responseStatus = response.getStatusLine().getStatusCode();
 
-        //System.out.println("Next page for "+request.getURI()+": " + nextLink(response));
-        if (responseStatus == HttpURLConnection.HTTP_NOT_MODIFIED) {
-            System.out.println("url " + request.getURI() + " is not modified");
+        final boolean rateLimited = isRateLimited(response);
+        final long retryAfter = budget.update(resource, response, rateLimited);
+        String cache = null;
+        if (rateLimited) {
+            EventLog.log(EventLog.Level.WARN, "github.rate-limited", -1, System.nanoTime() - start, "method", request.getMethod(),
+                    "uri", request.getURI(), "retry-after", retryAfter);
+        } else if (responseStatus == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            if (cached != null && cached.hasBody()) {
+                // replay the cached response, callers only see a 304 if the body was too big to be cached
+                cache = "hit";
+                httpCache.hit();
+                response.setStatusCode(HttpURLConnection.HTTP_OK);
+                response.setEntity(new ByteArrayEntity(cached.getBody(), ContentType.APPLICATION_JSON));
+                if (cached.link != null && response.getFirstHeader("Link") == null) {
+                    response.setHeader("Link", cached.link);
+                }
+            } else {
+                cache = "not-modified";
+            }
         } else {
             if (responseStatus != HttpURLConnection.HTTP_CREATED && responseStatus != HttpURLConnection.HTTP_OK && responseStatus != HttpURLConnection.HTTP_NO_CONTENT) {
-                System.err.printf("Could not %s to %s %n\t%s%n", request.getMethod(), request.getURI(), response.getStatusLine());
-            }
-            if (request.getMethod() == HttpGet.METHOD_NAME) {
-                String eTag = response.getFirstHeader("ETag").getValue();
+                EventLog.log(EventLog.Level.WARN, "github.request-failed", -1, System.nanoTime() - start, "method", request.getMethod(),
+                        "uri", request.getURI(), "status", response.getStatusLine());
+            } else if (get) {
+                final Header eTag = response.getFirstHeader("ETag");
                 if (eTag == null) {
-                    System.out.println("ETag is not defined for uri: " + request.getURI());
-                } else {
-                    cache.put(cacheKey, eTag);
-                    cacheDirty.compareAndSet(false, true);
+                    cache = "no-etag";
+                } else if (response.getEntity() != null) {
+                    cache = "stored";
+                    final byte[] body = EntityUtils.toByteArray(response.getEntity());
+                    final Header link = response.getFirstHeader("Link");
+                    httpCache.put(cacheKey, eTag.getValue(), link == null ? null : link.getValue(), body);
+                    response.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
                 }
             }
         }
 
-        String remaining = response.getFirstHeader("X-RateLimit-Remaining").getValue();
-        System.out.println("X-RateLimit-Remaining: " + remaining);
-
-        /*for (Header h : response.getAllHeaders()){
-            System.out.println(String.format("Header: %s",h));
-        }*/
+        if (EventLog.isEnabled(EventLog.Level.DEBUG)) {
+            final Header remaining = response.getFirstHeader("X-RateLimit-Remaining");
+            EventLog.log(EventLog.Level.DEBUG, "github.request", -1, System.nanoTime() - start, "method", request.getMethod(),
+                    "uri", request.getURI(), "status", responseStatus, "cache", cache, "rate-limit-remaining", remaining == null ? null : remaining.getValue());
+        }
         return response;
     }
 
+    /**
+     * Checks whether the request was rejected by the primary or a secondary rate limit. Secondary rate limits can only
+     * be told apart from other forbidden responses by the message, in that case the entity is buffered so it can still
+     * be read by the caller.
+     */
+    private static boolean isRateLimited(final HttpResponse response) throws IOException {
+        final int status = response.getStatusLine().getStatusCode();
+        if (status == 429) {
+            return true;
+        }
+        if (status != HttpURLConnection.HTTP_FORBIDDEN) {
+            return false;
+        }
+        final Header remaining = response.getFirstHeader("X-RateLimit-Remaining");
+        if (remaining != null && "0".equals(remaining.getValue().trim())) {
+            return true;
+        }
+        if (response.getEntity() == null) {
+            return false;
+        }
+        if (!response.getEntity().isRepeatable()) {
+            response.setEntity(new BufferedHttpEntity(response.getEntity()));
+        }
+        return EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8).toLowerCase(Locale.ROOT).contains("rate limit");
+    }
+
+    /**
+     * Returns the rate limit budget shared by all requests made by this API.
+     *
+     * @return the budget
+     */
+    RateLimitBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return the repository, as {@code owner/name}
+     */
+    String getRepository() {
+        return repository;
+    }
+
+    /**
+     * @return the metrics of the requests made by this API
+     */
+    Metrics getMetrics() {
+        return transport.getMetrics();
+    }
+
+    /**
+     * Writes the HTTP cache to disk if it has changed since it was last written.
+     *
+     * @throws IOException if the cache could not be written
+     */
+    void flush() throws IOException {
+        httpCache.flush();
+    }
+
     public void close() throws IOException {
-        if (cacheDirty.get()) {
-            cache.store(Files.newBufferedWriter(cacheFileName, StandardCharsets.UTF_8, StandardOpenOption.CREATE), null);
+        System.out.println(httpCache);
+        flush();
+        // the client belongs to the transport
+        if (ownsTransport) {
+            transport.close();
         }
-        httpClient.close();
     }
 
-    private Comment create(ModelNode comment) {
-        String createdAt = comment.get("created_at").asString();
-        return new Comment(comment.get("user", "login").asString(), comment.get("body").asString(), createdAt, comment.get("id").asString());
+    /**
+     * Reads a JSON array response, releasing the connection once the array has been read.
+     */
+    private static <T> List<T> readArray(final HttpResponse response, final ElementReader<T> elementReader) throws IOException {
+        final List<T> result = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(response.getEntity().getContent())) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                result.add(elementReader.read(reader));
+            }
+            reader.endArray();
+        }
+        return result;
     }
 
 
@@ -421,20 +888,12 @@ public class GitHubApi {
             String url = baseUrl + "/issues/" + issueId + "/comments";
             while (url != null) {
                 get = new HttpGet(url);
-                final HttpResponse response = execute(get);
+                final HttpResponse response = execute(get, Priority.LOW);
                 url = nextLink(response);
                 if (notModified(response)) {
                     return null;
                 }
-                ModelNode node = ModelNode.fromJSONStream(response.getEntity().getContent());
-                List<ModelNode> modelNodes = node.asList();
-                if (modelNodes.size() == 0) {
-                    continue;
-                }
-                for (ModelNode comment : modelNodes) {
-                    //comments.add(new Comment(comment.get("user", "login").asString(), comment.get("body").asString(), createdAt, id));
-                    comments.add(create(comment));
-                }
+                comments.addAll(readArray(response, Comment::read));
                 get.releaseConnection();
                 get = null;
             }
@@ -450,43 +909,72 @@ public class GitHubApi {
     }
 
     public void deleteComment(Comment comment) {
-        System.out.println(String.format("Deleting comment id: '%s' ",comment.id));
+        deleteComment(comment.id);
+    }
+
+    /**
+     * Deletes a comment on the request threads.
+     *
+     * @param id the id of the comment
+     *
+     * @return the status of the response, -1 if the request failed, completed with a
+     * {@link RateLimitBudget.ExhaustedException} if the budget didn't allow the request
+     */
+    CompletableFuture<Integer> deleteCommentAsync(final String id) {
+        return transport.async(() -> deleteComment(id));
+    }
+
+    private int deleteComment(final String id) {
+        System.out.println(String.format("Deleting comment id: '%s' ", id));
         if (this.dryRun) {
             System.out.println("Dry run - Not posting to github");
-            return;
+            return HttpURLConnection.HTTP_NO_CONTENT;
         }
         //final String requestUrl = baseUrl + "/issues/" + issue + "/comments/" + comment.id;
-        final String requestUrl = baseUrl + "/issues/comments/" + comment.id;
+        final String requestUrl = baseUrl + "/issues/comments/" + id;
 
         final HttpDelete delete = new HttpDelete(requestUrl);
-        try {
-            execute(delete);
+        try (CloseableHttpResponse response = execute(delete, Priority.LOW)) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        } catch (RateLimitBudget.ExhaustedException e) {
+            // the request was not sent, the caller decides when to try again
+            throw e;
         } catch (Exception e) {
             e.printStackTrace(System.err);
-        } finally {
-            delete.abort();
+            return -1;
         }
     }
 
 
-    public List<ModelNode> getAllIssues() {
-        final List<ModelNode> resultIssues = new LinkedList<>();
+    public List<Issue> getAllIssues() {
+        final List<Issue> resultIssues = new ArrayList<>();
         try {
             // Get all the issues for the repository
             String url = baseUrl + "/issues?state=open&filter=all";
             while (url != null) {
                 final HttpGet get = new HttpGet(url);
-                final HttpResponse response = execute(get);
-                url = nextLink(response);
-                if (notModified(response)) { //noting new to do
-                    return Collections.emptyList();
+                try (CloseableHttpResponse response = execute(get, Priority.LOW)) {
+                    url = nextLink(response);
+                    if (notModified(response)) { //noting new to do
+                        return Collections.emptyList();
+                    }
+                    resultIssues.addAll(readArray(response, Issue::read));
                 }
-                ModelNode responseResult = ModelNode.fromJSONStream(response.getEntity().getContent());
-                resultIssues.addAll(responseResult.asList());
             }
         } catch (Exception e) {
             e.printStackTrace(System.err);
         }
         return resultIssues;
     }
+
+    private interface ElementReader<T> {
+        T read(JsonReader reader) throws IOException;
+    }
+
+    private static class GraphQLPage {
+        final List<PullRequest> pulls = new ArrayList<>();
+        boolean hasNextPage;
+        String endCursor;
+    }
 }
@@ -0,0 +1,296 @@
+package org.jboss.pull.player;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A bounded, least recently used cache of HTTP responses used for conditional requests.
+ * <p/>
+ * Each entry holds the ETag, the {@code Link} header and a compressed copy of the body of the response, so a
+ * {@code 304 Not Modified} response can be answered with the cached content. Bodies larger than the configured maximum
+ * are not kept, only their ETag is.
+ * <p/>
+ * The cache is stored in a single file. Writing the file is guarded by a file lock and merges the entries already on
+ * disk, so the {@link Main}, {@link Labeler} and {@link Cleaner} processes, as well as instances splitting the pull
+ * requests through {@link Shards}, can share the cache while running at the same time.
+ */
+class HttpCache {
+    private static final int VERSION = 1;
+
+    private final Path file;
+    private final Path lockFile;
+    private final int maxEntries;
+    private final int maxBodySize;
+    private final Map<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private boolean dirty;
+
+    /**
+     * Creates the cache and loads the entries stored in the file.
+     *
+     * @param file        the file the cache is stored in
+     * @param maxEntries  the maximum number of responses to keep
+     * @param maxBodySize the maximum size in bytes of a compressed body to keep
+     */
+    HttpCache(final Path file, final int maxEntries, final int maxBodySize) {
+        this.file = file;
+        this.lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        this.maxEntries = maxEntries;
+        this.maxBodySize = maxBodySize;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, HttpCache.Entry> eldest) {
+                return size() > HttpCache.this.maxEntries;
+            }
+        };
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            final FileLock lock = channel.lock();
+            try {
+                for (Entry entry : read()) {
+                    entries.put(entry.key, entry);
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            System.out.println("could not load http cache");
+            e.printStackTrace(System.out);
+        }
+    }
+
+    /**
+     * Gets the cached response for the key.
+     *
+     * @param key the key, normally the URL of the request
+     *
+     * @return the cached response or {@code null} if nothing is cached for the key
+     */
+    synchronized Entry get(final String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Caches a response.
+     *
+     * @param key  the key, normally the URL of the request
+     * @param eTag the ETag of the response
+     * @param link the {@code Link} header of the response, may be {@code null}
+     * @param body the body of the response
+     */
+    void put(final String key, final String eTag, final String link, final byte[] body) {
+        final byte[] compressed = compress(body);
+        final Entry entry = new Entry(key, eTag, link, compressed.length > maxBodySize ? null : compressed, System.currentTimeMillis());
+        synchronized (this) {
+            entries.put(key, entry);
+            dirty = true;
+        }
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Records that a cached response was used.
+     */
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    double getHitRatio() {
+        final long hits = this.hits.get();
+        final long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the cache to disk if it has changed, merging entries written by other processes in the meantime.
+     *
+     * @throws IOException if the cache could not be written
+     */
+    void flush() throws IOException {
+        final List<Entry> ours;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            ours = new ArrayList<>(entries.values());
+            dirty = false;
+        }
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            final FileLock lock = channel.lock();
+            try {
+                final Map<String, Entry> merged = new HashMap<>();
+                for (Entry entry : read()) {
+                    merged.put(entry.key, entry);
+                }
+                for (Entry entry : ours) {
+                    final Entry other = merged.get(entry.key);
+                    if (other == null || other.stored <= entry.stored) {
+                        merged.put(entry.key, entry);
+                    }
+                }
+                final List<Entry> result = new ArrayList<>(merged.values());
+                // keep the most recently stored entries
+                result.sort(Comparator.comparingLong((Entry e) -> e.stored).reversed());
+                final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                    out.writeInt(VERSION);
+                    final int size = Math.min(maxEntries, result.size());
+                    out.writeInt(size);
+                    for (int i = 0; i < size; i++) {
+                        result.get(i).write(out);
+                    }
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HttpCache: {size: %d, hits: %d, misses: %d, hit ratio: %.2f}", size(), getHits(), getMisses(), getHitRatio());
+    }
+
+    private List<Entry> read() throws IOException {
+        final List<Entry> result = new ArrayList<>();
+        if (!Files.exists(file)) {
+            return result;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                System.out.println("Ignoring http cache with an unknown version");
+                return result;
+            }
+            final int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                result.add(Entry.read(in));
+            }
+        } catch (EOFException e) {
+            System.out.println("http cache is truncated, using the entries read so far");
+        }
+        // oldest first so the most recently stored end up as the most recently used
+        result.sort(Comparator.comparingLong(e -> e.stored));
+        return result;
+    }
+
+    private static byte[] compress(final byte[] body) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 16);
+        try (OutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(body);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A cached response.
+     */
+    static class Entry {
+        final String key;
+        final String eTag;
+        final String link;
+        private final byte[] body;
+        final long stored;
+
+        private Entry(final String key, final String eTag, final String link, final byte[] body, final long stored) {
+            this.key = key;
+            this.eTag = eTag;
+            this.link = link;
+            this.body = body;
+            this.stored = stored;
+        }
+
+        /**
+         * @return {@code true} if the body was cached
+         */
+        boolean hasBody() {
+            return body != null;
+        }
+
+        /**
+         * @return the uncompressed body
+         */
+        byte[] getBody() {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                final byte[] buffer = new byte[8192];
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, len);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return out.toByteArray();
+        }
+
+        private void write(final DataOutputStream out) throws IOException {
+            out.writeUTF(key);
+            out.writeUTF(eTag);
+            out.writeUTF(link == null ? "" : link);
+            out.writeLong(stored);
+            if (body == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(body.length);
+                out.write(body);
+            }
+        }
+
+        private static Entry read(final DataInputStream in) throws IOException {
+            final String key = in.readUTF();
+            final String eTag = in.readUTF();
+            final String link = in.readUTF();
+            final long stored = in.readLong();
+            final int length = in.readInt();
+            byte[] body = null;
+            if (length >= 0) {
+                body = new byte[length];
+                in.readFully(body);
+            }
+            return new Entry(key, eTag, link.isEmpty() ? null : link, body, stored);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.jboss.pull.player;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Records every request and response of the GitHub and TeamCity clients as fixtures for the {@link ReplayServer}.
+ * <p/>
+ * Each exchange is written to its own numbered file in the recording directory with the method, path, a checksum of
+ * the request body, the status, the response headers and the decoded response body. The URL of the server the request
+ * was sent to is replaced with {@value #BASE} in the headers and the body, so links like the {@code Link} header and the
+ * {@code comments_url} of a pull request point to the replay server when served again.
+ */
+class HttpRecorder implements HttpResponseInterceptor {
+    static final String BASE = "{base}";
+
+    private final Path dir;
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    /**
+     * Creates a recorder, the exchanges are numbered after the fixtures already in the directory.
+     *
+     * @param dir the directory to write the fixtures to
+     */
+    HttpRecorder(final Path dir) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+            try (Stream<Path> files = Files.list(dir)) {
+                sequence.set((int) files.filter(HttpRecorder::isFixture).count());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not create the recording directory " + dir, e);
+        }
+        System.out.println("Recording HTTP exchanges to " + dir);
+    }
+
+    @Override
+    public void process(final HttpResponse response, final HttpContext context) throws IOException {
+        final HttpClientContext clientContext = HttpClientContext.adapt(context);
+        final HttpRequest request = clientContext.getRequest();
+        final HttpHost target = clientContext.getTargetHost();
+        final String base = target == null ? null : target.toURI();
+        byte[] requestBody = null;
+        if (request instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) request).getEntity() != null) {
+            requestBody = EntityUtils.toByteArray(((HttpEntityEnclosingRequest) request).getEntity());
+        }
+        final ModelNode fixture = new ModelNode();
+        fixture.get("method").set(request.getRequestLine().getMethod());
+        fixture.get("uri").set(path(request.getRequestLine().getUri()));
+        if (requestBody != null && requestBody.length > 0) {
+            fixture.get("request-body").set(checksum(requestBody));
+        }
+        fixture.get("status").set(response.getStatusLine().getStatusCode());
+        final ModelNode headers = fixture.get("headers").setEmptyList();
+        for (Header header : response.getAllHeaders()) {
+            final ModelNode value = headers.add();
+            value.get("name").set(header.getName());
+            value.get("value").set(replace(header.getValue(), base));
+        }
+        final HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            // the body is read here, the caller reads it again from the buffer
+            final BufferedHttpEntity buffered = new BufferedHttpEntity(entity);
+            response.setEntity(buffered);
+            fixture.get("body").set(replace(EntityUtils.toString(buffered, StandardCharsets.UTF_8), base));
+        }
+        final Path file = dir.resolve(String.format("%06d.json", sequence.incrementAndGet()));
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(tmp, StandardCharsets.UTF_8))) {
+            fixture.writeJSONString(writer, false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static boolean isFixture(final Path file) {
+        return file.getFileName().toString().matches("\\d+\\.json");
+    }
+
+    /**
+     * @return the key the replay server looks an exchange up with
+     */
+    static String key(final String method, final String uri, final String requestBody) {
+        return requestBody == null ? method + ' ' + uri : method + ' ' + uri + ' ' + requestBody;
+    }
+
+    static String checksum(final byte[] body) {
+        final CRC32 crc = new CRC32();
+        crc.update(body);
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * @return the path and query of the URI the request was sent to
+     */
+    private static String path(final String uri) {
+        if (!uri.startsWith("/")) {
+            final URI parsed = URI.create(uri);
+            return parsed.getRawQuery() == null ? parsed.getRawPath() : parsed.getRawPath() + '?' + parsed.getRawQuery();
+        }
+        return uri;
+    }
+
+    private static String replace(final String value, final String base) {
+        return base == null ? value : value.replace(base, BASE);
+    }
+}
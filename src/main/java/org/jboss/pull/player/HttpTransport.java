@@ -0,0 +1,189 @@
+package org.jboss.pull.player;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+
+/**
+ * The connection settings, the clients and the pool of request threads shared by {@link GitHubApi} and
+ * {@link TeamCityApi}.
+ * <p/>
+ * Requests are still sent with the blocking client, {@link #async(Callable)} runs them on a bounded pool so independent
+ * requests, like the details and the comments of a pull request, can be in flight at the same time. Tasks run on the
+ * pool must not wait for other tasks of the pool.
+ * <p/>
+ * The clients are created once per server and shared by the APIs of all repositories, so the number of connections
+ * doesn't grow with the number of repositories. They are closed with the transport, by whoever created it.
+ */
+class HttpTransport implements Closeable {
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int maxConnections;
+    private final ExecutorService executor;
+    private final HttpRecorder recorder;
+    private final Metrics metrics = new Metrics();
+    private final Map<String, CloseableHttpClient> clients = new HashMap<>();
+
+    /**
+     * Creates a transport.
+     *
+     * @param connectTimeout the timeout in seconds for opening a connection or waiting for a pooled one
+     * @param readTimeout    the timeout in seconds to wait for data on an open connection
+     * @param maxConnections the maximum number of connections per client, also the number of request threads
+     */
+    HttpTransport(final int connectTimeout, final int readTimeout, final int maxConnections) {
+        this(connectTimeout, readTimeout, maxConnections, null);
+    }
+
+    /**
+     * Creates a transport.
+     *
+     * @param connectTimeout the timeout in seconds for opening a connection or waiting for a pooled one
+     * @param readTimeout    the timeout in seconds to wait for data on an open connection
+     * @param maxConnections the maximum number of connections per client, also the number of request threads
+     * @param recorder       records the exchanges of all clients, may be {@code null}
+     */
+    HttpTransport(final int connectTimeout, final int readTimeout, final int maxConnections, final HttpRecorder recorder) {
+        this.connectTimeout = (int) TimeUnit.SECONDS.toMillis(connectTimeout);
+        this.readTimeout = (int) TimeUnit.SECONDS.toMillis(readTimeout);
+        // the default pool only allows 2 connections per route, which would serialize concurrent requests
+        this.maxConnections = Math.max(2, maxConnections);
+        this.recorder = recorder;
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(this.maxConnections, r -> {
+            final Thread thread = new Thread(r, "pull-player-http-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a transport with the timeouts configured in {@code player.properties}. If {@code http.record.dir} is set
+     * all exchanges are recorded to that directory.
+     *
+     * @param maxConnections the maximum number of connections per client
+     *
+     * @return the transport
+     */
+    static HttpTransport create(final int maxConnections) {
+        final String recordDir = Util.getProperties().getProperty("http.record.dir");
+        return new HttpTransport(Util.optionalInt("http.connect.timeout", 10), Util.optionalInt("http.read.timeout", 60), maxConnections,
+                recordDir == null ? null : new HttpRecorder(Paths.get(recordDir)));
+    }
+
+    /**
+     * @return a client builder with the timeouts and the connection pool size set, timing every exchange and recording
+     * them if enabled
+     */
+    HttpClientBuilder clientBuilder() {
+        final RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+        final HttpClientBuilder builder = HttpClients.custom()
+                .setDefaultRequestConfig(config)
+                .setMaxConnPerRoute(maxConnections)
+                .setMaxConnTotal(maxConnections)
+                .addInterceptorFirst(metrics.requestStart())
+                .addInterceptorFirst(metrics.responseEnd());
+        if (recorder != null) {
+            builder.addInterceptorLast(recorder);
+        }
+        return builder;
+    }
+
+    /**
+     * Returns the client of a server, creating it the first time.
+     *
+     * @param key     identifies the server and the credentials used with it
+     * @param factory creates the client from a {@link #clientBuilder() client builder}
+     *
+     * @return the client, closed when the transport is closed
+     */
+    synchronized CloseableHttpClient client(final String key, final Function<HttpClientBuilder, CloseableHttpClient> factory) {
+        return clients.computeIfAbsent(key, k -> factory.apply(clientBuilder()));
+    }
+
+    /**
+     * @return the metrics of the clients created by this transport
+     */
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Runs the request on the request threads.
+     *
+     * @param request the request
+     *
+     * @return the result of the request
+     */
+    <T> CompletableFuture<T> async(final Callable<T> request) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                result.complete(request.call());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Waits for the result of a request, rethrowing runtime failures as they were thrown.
+     *
+     * @param future the result of the request
+     *
+     * @return the result
+     */
+    static <T> T join(final CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for a request", e);
+        } catch (ExecutionException | CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        final List<CloseableHttpClient> closing;
+        synchronized (this) {
+            closing = new ArrayList<>(clients.values());
+            clients.clear();
+        }
+        for (CloseableHttpClient client : closing) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.jboss.pull.player;
+
+import java.io.IOException;
+
+/**
+ * The fields of an issue used by the player.
+ */
+class Issue {
+    final int number;
+    final int comments;
+    /**
+     * The REST URL of the pull request or {@code null} if the issue is not a pull request
+     */
+    final String pullRequestUrl;
+
+    private Issue(final int number, final int comments, final String pullRequestUrl) {
+        this.number = number;
+        this.comments = comments;
+        this.pullRequestUrl = pullRequestUrl;
+    }
+
+    /**
+     * Reads an issue in the format of the REST API.
+     *
+     * @param reader the reader positioned at the issue object
+     *
+     * @return the issue
+     */
+    static Issue read(final JsonReader reader) throws IOException {
+        int number = -1;
+        int comments = 0;
+        String pullRequestUrl = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "number":
+                    number = reader.nextInt();
+                    break;
+                case "comments":
+                    comments = reader.nextInt();
+                    break;
+                case "pull_request":
+                    pullRequestUrl = reader.nextNestedString("url");
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new Issue(number, comments, pullRequestUrl);
+    }
+}
@@ -7,54 +7,184 @@ package org.jboss.pull.player;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 /**
+ * The builds completed for a head sha.
+ * <p/>
+ * Jobs are kept in memory and every change is appended to a single log file, {@code completed-jobs.log} in the state
+ * directory of the repository. Each record ends with a checksum, a record which was only partially written when the
+ * process died is skipped when the log is read. The log is compacted at most once a day, dropping removed jobs and jobs
+ * of pull requests which are no longer open. Jobs stored by older versions in the {@code completed-jobs} directory are
+ * imported the first time the log is loaded.
+ * <p/>
+ * Several processes can share the log, changes are made through a {@link SharedLog}. Jobs stored by other processes
+ * are seen after the next change or {@link #refresh()}.
+ *
  * @author Jason T. Greene
  */
 public class Jobs {
-    private static final File jobDir = new File(Util.BASE_DIR, "completed-jobs");
+    private static final long COMPACT_INTERVAL = TimeUnit.DAYS.toMillis(1);
+    private static final String STORE = "S";
+    private static final String REMOVE = "R";
+    private static final String COMPACTED = "C";
+
+    private final File dir;
+    private final File jobDir;
+    private final SharedLog log;
+    // replaced as a whole when the log is read again, so lookups never see a partially read log
+    private volatile Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private volatile long lastCompaction;
 
-    public static String getCompletedJob(String sha1) {
-        File job = new File(jobDir, sha1);
-        BufferedReader reader;
-        try {
-            reader = new BufferedReader(new FileReader(job));
-        } catch (FileNotFoundException e) {
-            return null;
+    /**
+     * Loads the jobs of a state directory.
+     *
+     * @param dir the state directory
+     */
+    public Jobs(File dir) {
+        this.dir = dir;
+        jobDir = new File(dir, "completed-jobs");
+        log = new SharedLog(dir.toPath().resolve("completed-jobs.log"), lines -> {
+            final Map<String, Job> loaded = new ConcurrentHashMap<>();
+            lastCompaction = 0;
+            for (String line : lines) {
+                read(loaded, line);
+            }
+            jobs = loaded;
+        }, line -> read(jobs, line));
+        log.refresh();
+        if (jobDir.isDirectory()) {
+            importJobDir();
         }
+    }
+
+    public String getCompletedJob(String sha1) {
+        final Job job = jobs.get(sha1);
+        return job == null ? null : String.valueOf(job.build);
+    }
+
+    public synchronized void storeCompletedJob(String sha1, int pull, int build) {
+        log.append(() -> {
+            jobs.put(sha1, new Job(pull, build));
+            return Collections.singletonList(record(STORE, sha1, String.valueOf(pull), String.valueOf(build)));
+        });
+    }
+
+    public synchronized void remove(String sha1) {
+        log.append(() -> jobs.remove(sha1) == null ? Collections.emptyList() : Collections.singletonList(record(REMOVE, sha1)));
+    }
 
-        try {
-            reader.readLine();
-            return reader.readLine().trim();
-        } catch (IOException e) {
-            return null;
-        } finally {
-            Util.safeClose(reader);
+    /**
+     * Reads the jobs stored and removed by other processes since the last read.
+     */
+    public synchronized void refresh() {
+        log.refresh();
+    }
+
+    /**
+     * Rewrites the log with only the jobs of the open pull requests, if the log has not been compacted for a day.
+     *
+     * @param openPulls the numbers of all open pull requests
+     */
+    public synchronized void compact(Set<Integer> openPulls) {
+        if (System.currentTimeMillis() - lastCompaction < COMPACT_INTERVAL) {
+            return;
+        }
+        final boolean compacted = log.replace(() -> {
+            // another process may have compacted the log in the meantime
+            if (System.currentTimeMillis() - lastCompaction < COMPACT_INTERVAL) {
+                return null;
+            }
+            jobs.values().removeIf(job -> !openPulls.contains(job.pull));
+            lastCompaction = System.currentTimeMillis();
+            final List<String> records = new ArrayList<>(jobs.size() + 1);
+            records.add(record(COMPACTED, String.valueOf(lastCompaction)));
+            for (Map.Entry<String, Job> entry : jobs.entrySet()) {
+                records.add(record(STORE, entry.getKey(), String.valueOf(entry.getValue().pull), String.valueOf(entry.getValue().build)));
+            }
+            return records;
+        });
+        if (compacted) {
+            System.out.printf("Compacted completed jobs, %d jobs left%n", jobs.size());
         }
     }
 
-    public static void storeCompletedJob(String sha1, int pull, int build) {
-        jobDir.mkdir();
-        File file = new File(jobDir, sha1);
-        PrintWriter writer = null;
-        try {
-            file.createNewFile();
-            writer = new PrintWriter(new FileWriter(file));
-            writer.println(String.valueOf(pull));
-            writer.println(String.valueOf(build));
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
-        } finally {
-            Util.safeClose(writer);
+    private static String record(String... fields) {
+        final String record = String.join(" ", fields);
+        return record + " " + checksum(record);
+    }
+
+    private static String checksum(String record) {
+        final CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+    private void read(Map<String, Job> jobs, String line) {
+        final int last = line.lastIndexOf(' ');
+        if (last < 0 || !line.substring(last + 1).equals(checksum(line.substring(0, last)))) {
+            System.err.println("Skipping corrupt completed job record: " + line);
+            return;
+        }
+        final String[] fields = line.substring(0, last).split(" ");
+        if (STORE.equals(fields[0])) {
+            jobs.put(fields[1], new Job(Integer.parseInt(fields[2]), Integer.parseInt(fields[3])));
+        } else if (REMOVE.equals(fields[0])) {
+            jobs.remove(fields[1]);
+        } else if (COMPACTED.equals(fields[0])) {
+            lastCompaction = Long.parseLong(fields[1]);
         }
     }
 
-    public static void remove(String sha1) {
-        new File(jobDir, sha1).delete();
+    private void importJobDir() {
+        final File[] files = jobDir.listFiles();
+        final Map<String, Job> legacy = new LinkedHashMap<>();
+        if (files != null) {
+            for (File file : files) {
+                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                    final int pull = Integer.parseInt(reader.readLine().trim());
+                    final int build = Integer.parseInt(reader.readLine().trim());
+                    legacy.put(file.getName(), new Job(pull, build));
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Could not import completed job " + file + ": " + e);
+                }
+            }
+        }
+        // a single append, so a large directory costs one sync of the log instead of one per job
+        final List<String> imported = new ArrayList<>();
+        log.append(() -> {
+            for (Map.Entry<String, Job> entry : legacy.entrySet()) {
+                if (jobs.putIfAbsent(entry.getKey(), entry.getValue()) == null) {
+                    imported.add(record(STORE, entry.getKey(), String.valueOf(entry.getValue().pull), String.valueOf(entry.getValue().build)));
+                }
+            }
+            return imported;
+        });
+        final File importedDir = new File(dir, "completed-jobs.imported");
+        if (!jobDir.renameTo(importedDir)) {
+            System.err.println("Could not rename " + jobDir + " to " + importedDir);
+        }
+        System.out.printf("Imported %d completed jobs from %s%n", imported.size(), jobDir);
+    }
+
+    private static class Job {
+        final int pull;
+        final int build;
+
+        Job(int pull, int build) {
+            this.pull = pull;
+            this.build = build;
+        }
     }
 }
@@ -0,0 +1,389 @@
+package org.jboss.pull.player;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A minimal streaming JSON parser.
+ * <p/>
+ * The GitHub and TeamCity responses are large and only a few fields of them are used. Reading them token by token and
+ * {@link #skipValue() skipping} everything else avoids building a full {@link org.jboss.dmr.ModelNode} tree for every
+ * page.
+ */
+class JsonReader implements Closeable {
+
+    enum Token {
+        BEGIN_OBJECT,
+        END_OBJECT,
+        BEGIN_ARRAY,
+        END_ARRAY,
+        NAME,
+        STRING,
+        NUMBER,
+        BOOLEAN,
+        NULL,
+        END_DOCUMENT,
+    }
+
+    private static final int EMPTY_ARRAY = 1;
+    private static final int NONEMPTY_ARRAY = 2;
+    private static final int EMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int NONEMPTY_OBJECT = 5;
+    private static final int EMPTY_DOCUMENT = 6;
+    private static final int NONEMPTY_DOCUMENT = 7;
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int pos;
+    private int limit;
+    private int[] stack = new int[32];
+    private int stackSize;
+    private Token peeked;
+    private String value;
+    private final StringBuilder sb = new StringBuilder();
+
+    JsonReader(final Reader in) {
+        this.in = in;
+        stack[stackSize++] = EMPTY_DOCUMENT;
+    }
+
+    JsonReader(final InputStream in) {
+        this(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    Token peek() throws IOException {
+        if (peeked == null) {
+            peeked = doPeek();
+        }
+        return peeked;
+    }
+
+    void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        stackSize--;
+    }
+
+    void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        stackSize--;
+    }
+
+    /**
+     * @return {@code true} if the current object or array has more elements
+     */
+    boolean hasNext() throws IOException {
+        final Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    String nextName() throws IOException {
+        expect(Token.NAME);
+        return value;
+    }
+
+    /**
+     * Reads a string, number or boolean as a string.
+     *
+     * @return the value or {@code null} if the value is {@code null}
+     */
+    String nextString() throws IOException {
+        final Token token = peek();
+        if (token == Token.NULL) {
+            peeked = null;
+            return null;
+        }
+        if (token != Token.STRING && token != Token.NUMBER && token != Token.BOOLEAN) {
+            throw syntaxError("Expected a string but was " + token);
+        }
+        peeked = null;
+        return value;
+    }
+
+    int nextInt() throws IOException {
+        final String value = nextString();
+        if (value == null) {
+            throw syntaxError("Expected a number but was null");
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Expected a number but was " + value);
+        }
+    }
+
+    /**
+     * Reads a boolean.
+     *
+     * @return the value or {@code null} if the value is {@code null}
+     */
+    Boolean nextBoolean() throws IOException {
+        final String value = nextString();
+        return value == null ? null : Boolean.valueOf(value);
+    }
+
+    /**
+     * Skips the next value, including all the values nested in it.
+     */
+    void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    depth++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    depth++;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    depth--;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    depth--;
+                    break;
+                case END_DOCUMENT:
+                    throw syntaxError("Unexpected end of document");
+                default:
+                    peeked = null;
+                    break;
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * Reads the next object, returning the value of a nested string field.
+     *
+     * @param name the name of the field in the object
+     *
+     * @return the value or {@code null} if the object is {@code null} or doesn't contain the field
+     */
+    String nextNestedString(final String name) throws IOException {
+        if (peek() == Token.NULL) {
+            peeked = null;
+            return null;
+        }
+        String result = null;
+        beginObject();
+        while (hasNext()) {
+            if (name.equals(nextName())) {
+                result = nextString();
+            } else {
+                skipValue();
+            }
+        }
+        endObject();
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void expect(final Token expected) throws IOException {
+        final Token token = peek();
+        if (token != expected) {
+            throw syntaxError("Expected " + expected + " but was " + token);
+        }
+        peeked = null;
+    }
+
+    private void push(final int scope) {
+        if (stackSize == stack.length) {
+            stack = Arrays.copyOf(stack, stackSize * 2);
+        }
+        stack[stackSize++] = scope;
+    }
+
+    private Token doPeek() throws IOException {
+        final int scope = stack[stackSize - 1];
+        if (scope == EMPTY_ARRAY) {
+            stack[stackSize - 1] = NONEMPTY_ARRAY;
+            if (nextNonWhitespace() == ']') {
+                pos++;
+                return Token.END_ARRAY;
+            }
+        } else if (scope == NONEMPTY_ARRAY) {
+            final int c = nextNonWhitespace();
+            pos++;
+            if (c == ']') {
+                return Token.END_ARRAY;
+            } else if (c != ',') {
+                throw syntaxError("Unterminated array");
+            }
+        } else if (scope == EMPTY_OBJECT || scope == NONEMPTY_OBJECT) {
+            stack[stackSize - 1] = DANGLING_NAME;
+            int c = nextNonWhitespace();
+            pos++;
+            if (c == '}') {
+                return Token.END_OBJECT;
+            }
+            if (scope == NONEMPTY_OBJECT) {
+                if (c != ',') {
+                    throw syntaxError("Unterminated object");
+                }
+                c = nextNonWhitespace();
+                pos++;
+            }
+            if (c != '"') {
+                throw syntaxError("Expected a name");
+            }
+            value = readString();
+            return Token.NAME;
+        } else if (scope == DANGLING_NAME) {
+            stack[stackSize - 1] = NONEMPTY_OBJECT;
+            if (nextNonWhitespace() != ':') {
+                throw syntaxError("Expected ':'");
+            }
+            pos++;
+        } else if (scope == EMPTY_DOCUMENT) {
+            stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+        } else if (scope == NONEMPTY_DOCUMENT) {
+            if (nextNonWhitespace() == -1) {
+                return Token.END_DOCUMENT;
+            }
+            throw syntaxError("Expected the end of the document");
+        }
+
+        final int c = nextNonWhitespace();
+        switch (c) {
+            case -1:
+                throw syntaxError("Unexpected end of document");
+            case '{':
+                pos++;
+                return Token.BEGIN_OBJECT;
+            case '[':
+                pos++;
+                return Token.BEGIN_ARRAY;
+            case '"':
+                pos++;
+                value = readString();
+                return Token.STRING;
+            default:
+                value = readLiteral();
+                if ("null".equals(value)) {
+                    return Token.NULL;
+                } else if ("true".equals(value) || "false".equals(value)) {
+                    return Token.BOOLEAN;
+                }
+                return Token.NUMBER;
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        while (pos < limit || fill()) {
+            final char c = buffer[pos];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+            pos++;
+        }
+        return -1;
+    }
+
+    private boolean fill() throws IOException {
+        pos = 0;
+        limit = in.read(buffer, 0, buffer.length);
+        if (limit < 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private String readString() throws IOException {
+        sb.setLength(0);
+        while (true) {
+            int start = pos;
+            while (pos < limit) {
+                final char c = buffer[pos++];
+                if (c == '"') {
+                    sb.append(buffer, start, pos - start - 1);
+                    return sb.toString();
+                } else if (c == '\\') {
+                    sb.append(buffer, start, pos - start - 1);
+                    sb.append(readEscape());
+                    start = pos;
+                }
+            }
+            sb.append(buffer, start, pos - start);
+            if (!fill()) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        final char c = readChar();
+        switch (c) {
+            case 'u':
+                int result = 0;
+                for (int i = 0; i < 4; i++) {
+                    final int digit = Character.digit(readChar(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("Invalid unicode escape");
+                    }
+                    result = (result << 4) + digit;
+                }
+                return (char) result;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            default:
+                return c;
+        }
+    }
+
+    private char readChar() throws IOException {
+        if (pos == limit && !fill()) {
+            throw syntaxError("Unexpected end of document");
+        }
+        return buffer[pos++];
+    }
+
+    private String readLiteral() throws IOException {
+        sb.setLength(0);
+        while (pos < limit || fill()) {
+            final char c = buffer[pos];
+            if (c == ',' || c == '}' || c == ']' || c == ':' || c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                break;
+            }
+            sb.append(c);
+            pos++;
+        }
+        if (sb.length() == 0) {
+            throw syntaxError("Expected a value");
+        }
+        return sb.toString();
+    }
+
+    private IOException syntaxError(final String message) {
+        return new IOException("Malformed JSON: " + message);
+    }
+}
@@ -22,94 +22,126 @@
 
 package org.jboss.pull.player;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.Property;
 
 /**
  * Process pull requests to determine if the pull request requires a change to the labels.
  * <p/>
- * This class is not thread safe, but also shouldn't matter for now.
+ * Pull requests may be {@link #add(PullRequest) added} concurrently, processing is expected to happen
+ * from a single thread once all pull requests have been added.
+ * <p/>
+ * The head sha and issue URL of every open pull request are kept in {@code issues.json}. A pull request added with a
+ * different head sha has received new commits, the labels listed in {@code issue.labels} are replaced on it by
+ * {@link #process()} at the end of the cycle. Only pull requests which changed are added by the player, so nothing is
+ * scanned.
  *
  * @author <a href="mailto:jperkins@redhat.com">James R. Perkins</a>
  * @author Tomaz CErar
  */
 public class LabelProcessor {
-    private final Path path = Util.BASE_DIR.toPath().resolve("issues.json");
+    private final Path path;
     private final Labels labels;
 
-    private List<ModelNode> pulls;
+    private final Map<Integer, IssueState> pulls = new HashMap<>();
     private final PrintStream err = System.err;
     private final GitHubApi api;
+    private boolean dirty;
 
     LabelProcessor(GitHubApi api) {
+        this(api, Util.BASE_DIR.toPath().resolve("issues.json"));
+    }
+
+    LabelProcessor(GitHubApi api, Path path) {
         this.api = api;
+        this.path = path;
         labels = new Labels();
-       /* // If the file exists, load it
+        // If the file exists, load it
         if (Files.exists(path)) {
             try (final InputStream in = Files.newInputStream(path)) {
-                pulls = ModelNode.fromJSONStream(in);
-            } catch (IOException e) {
-                e.printStackTrace();
-                pulls = new ModelNode();
-                pulls.setEmptyObject();
-
+                final ModelNode node = ModelNode.fromJSONStream(in);
+                if (node.hasDefined("pulls")) {
+                    for (Property property : node.get("pulls").asPropertyList()) {
+                        pulls.put(Integer.parseInt(property.getName()), IssueState.fromModel(property.getValue()));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // label replacements are missed for pull requests changed before they are seen again
+                err.println("Could not load the issue states: " + e);
+                pulls.clear();
             }
-        } else {
-            // No file exists, create a new model
-            pulls = new ModelNode();
-        }*/
+        }
     }
 
-    void process(final List<ModelNode> pulls) {
-        final String rebaseThisLabel = this.labels.getRebaseThis();
-        final String fixMeLabel = this.labels.getFixMe();
-        for (ModelNode pull : pulls) {
-            int number = pull.get("number").asInt();
-            if (!pull.hasDefined("mergeable")) {
-                System.out.println("missing mergable meta data for " + number);
-                continue;
-            }
-            boolean mergeable = pull.get("mergeable").asBoolean();
-            String mergeableState = pull.get("mergeable_state").asString();
-            boolean cleanBuild = "clean".equals(mergeableState);
-            List<String> labels = getLabels(pull);
-            List<String> newLabels = new LinkedList<>();
-            List<String> removedLabels = new LinkedList<>();
-            System.out.println(String.format("pull=%s, mergable=%s, clean=%s, lables=%s", number, mergeable, cleanBuild, labels));
-
-            if (mergeable) {
-                if (labels.contains(rebaseThisLabel)) {
-                    removedLabels.add(rebaseThisLabel);
-                    System.out.println("rebased, remove label "+ number);
+    /**
+     * Reconciles the labels of the pull requests with the {@link LabelRule rules}. The labels a pull request should
+     * have are decided from the pull request alone, so no requests are made for pull requests whose labels are already
+     * right. The others are changed with a single request each, sent concurrently at low priority so the rate limit
+     * budget paces them.
+     *
+     * @param pulls the open pull requests with their labels and mergeable state
+     */
+    void process(final List<PullRequest> pulls) {
+        final List<LabelRule> rules = labels.getRules();
+        if (rules.isEmpty()) {
+            System.out.println("No label rules are configured");
+            return;
+        }
+        final List<CompletableFuture<Void>> changes = new ArrayList<>();
+        final Map<String, Boolean> decisions = new LinkedHashMap<>();
+        for (PullRequest pull : pulls) {
+            decisions.clear();
+            for (LabelRule rule : rules) {
+                final Boolean wants = rule.wants(pull);
+                if (wants != null) {
+                    decisions.put(rule.getLabel(), wants);
                 }
-            } else {
-                if (!labels.contains(rebaseThisLabel)) {
-                    newLabels.add(rebaseThisLabel);
-                    System.out.println("we need to rebase "+ number);
+            }
+            final Set<String> added = new LinkedHashSet<>();
+            final Set<String> removed = new LinkedHashSet<>();
+            for (Map.Entry<String, Boolean> decision : decisions.entrySet()) {
+                final boolean present = pull.labels.contains(decision.getKey());
+                if (decision.getValue() && !present) {
+                    added.add(decision.getKey());
+                } else if (!decision.getValue() && present) {
+                    removed.add(decision.getKey());
                 }
             }
-            if (cleanBuild && labels.contains(fixMeLabel)){ //we have clean test of the PR
-                removedLabels.add(fixMeLabel);
-                System.out.println("we need to remove fixme for "+ number);
+            if (added.isEmpty() && removed.isEmpty()) {
+                continue;
             }
-
-            if (!newLabels.isEmpty() && removedLabels.isEmpty()){
-                final String issueUrl = pull.get("issue_url").asString();
-                // Set the new labels
-                api.addLabels(issueUrl, newLabels);
-            }else if (!removedLabels.isEmpty()){
-                final String issueUrl = pull.get("issue_url").asString();
-                labels.removeAll(removedLabels);
-                // Set the new labels
-                api.setLabels(issueUrl, labels);
+            final Set<String> labels = new LinkedHashSet<>(pull.labels);
+            labels.removeAll(removed);
+            labels.addAll(added);
+            EventLog.log(EventLog.Level.INFO, "label.change", pull.number, -1, "added", added, "removed", removed);
+            changes.add(api.changeLabelsAsync(pull.issueUrl, added, removed, labels));
+        }
+        System.out.printf("Changing the labels of %d of %d pull requests%n", changes.size(), pulls.size());
+        for (CompletableFuture<Void> change : changes) {
+            try {
+                HttpTransport.join(change);
+            } catch (Exception e) {
+                e.printStackTrace(err);
             }
         }
-
     }
 
     /**
@@ -117,110 +149,154 @@ public class LabelProcessor {
      *
      * @param pull the pull request to be processed
      */
-    void add(final ModelNode pull) {
-        /*final int pullNumber = pull.get("number").asInt();
-        final String sha1 = pull.get("head", "sha").asString();
-        final String issueUrl = pull.get("issue_url").asString();
-        boolean mergeable = pull.get("mergeable").asString().equals("true");
-
-        final String key = "pr-" + pullNumber;
-
-        if (pulls.hasDefined(key)) {
-            final ModelNode n = pulls.get(key);
-            if (!n.get("sha").asString().equals(sha1)) {
-                // Add the new sha key to be checked during processing
-                n.get("new-sha").set(sha1);
-            }
-        } else {
-            final ModelNode model = new ModelNode();
-            model.get("sha").set(sha1);
-            model.get("issue_url").set(issueUrl);
-            model.get("pull_request_url").set(pull.get("url"));
-            model.get("mergeable").set(mergeable);
-            pulls.get(key).set(model);
-        }*/
+    synchronized void add(final PullRequest pull) {
+        if (!labels.hasReplacements() || pull.headSha == null || pull.issueUrl == null) {
+            return;
+        }
+        final IssueState state = pulls.get(pull.number);
+        if (state == null) {
+            pulls.put(pull.number, new IssueState(pull.headSha, pull.issueUrl));
+            dirty = true;
+        } else if (!pull.headSha.equals(state.sha)) {
+            // Add the new sha key to be checked during processing
+            state.newSha = pull.headSha;
+            state.labels = pull.labels;
+            dirty = true;
+        } else if (state.newSha != null) {
+            // pushed back to the commit the labels were last checked for
+            state.newSha = null;
+            state.labels = Collections.emptyList();
+            dirty = true;
+        }
     }
 
     /**
-     * Processes the pull requests {@link #add(org.jboss.dmr.ModelNode) added}.
+     * Processes the pull requests {@link #add(PullRequest) added}.
      * <p/>
-     * This should normally only be invoked once as it makes API calls to GitHub.
+     * This should normally only be invoked once per cycle as it makes API calls to GitHub. The label changes are sent
+     * concurrently at low priority, the states are written once all of them are done.
      */
-    void process() {
-        /*try {
-            // Get all the open issues to lessen the hits to the API
-            final List<ModelNode> openIssues = api.getIssuesWithPullRequests();
-
-            // Process each issue in the model
-            for (Property property : pulls.asPropertyList()) {
-                final ModelNode value = property.getValue();
-                boolean mergeable = value.get("mergeable").asBoolean();
-                // Get the PR url
-                final String prUrl = value.get("pull_request_url").asString();
-                if (openIssues.hasDefined(prUrl)) {
-                    final ModelNode openIssue = openIssues.get(prUrl);
-
-                    // Get the current labels
-                    final List<String> currentLabels = getLabels(openIssue);
-                    // If no labels are present, we can delete the issue
-                    if (currentLabels.isEmpty()) {
-                        pulls.remove(property.getName());
-                    } else {
-                        boolean changeRequired = false;
-
-                        // Process the labels only requiring a change if the label was defined in the configuration
-                        final List<String> newLabels = new ArrayList<>();
-                        for (String label : currentLabels) {
-                            if (labels.isRemovable(label)) {
-                                final String newLabel = labels.getReplacement(label);
-                                if (newLabel != null) {
-                                    newLabels.add(newLabel);
-                                }
-                                changeRequired = true;
-                            } else {
-                                newLabels.add(label);
-                            }
-                        }
-                        // Check that the PR has been changed and a change is required
-                        if (changeRequired && value.hasDefined("new-sha")) {
-                            final String issueUrl = value.get("issue_url").asString();
-                            // Set the new labels
-                            api.setLabels(issueUrl, newLabels);
-                            // Node needs to be removed
-                            pulls.remove(property.getName());
-                        } else if (!changeRequired) {
-                            // No change in labels has been required, remove the issue
-                            pulls.remove(property.getName());
-                        }
+    synchronized void process() {
+        final List<CompletableFuture<Void>> changes = new ArrayList<>();
+        for (Map.Entry<Integer, IssueState> entry : pulls.entrySet()) {
+            final IssueState state = entry.getValue();
+            if (state.newSha == null) {
+                continue;
+            }
+            // Process the labels only requiring a change if the label was defined in the configuration
+            final Set<String> newLabels = new LinkedHashSet<>();
+            final Set<String> added = new LinkedHashSet<>();
+            final Set<String> removed = new LinkedHashSet<>();
+            for (String label : state.labels) {
+                if (labels.isRemovable(label)) {
+                    removed.add(label);
+                    final String newLabel = labels.getReplacement(label);
+                    if (newLabel != null && !state.labels.contains(newLabel)) {
+                        added.add(newLabel);
                     }
                 } else {
-                    // The issue/PR may be closed, we can just delete it
-                    pulls.remove(property.getName());
+                    newLabels.add(label);
                 }
             }
-
-            // Write the issues out to a file
-            try (final PrintWriter writer = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8,
-                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING,
-                    StandardOpenOption.SYNC, StandardOpenOption.CREATE))) {
-                pulls.writeJSONString(writer, false);
+            newLabels.addAll(added);
+            if (!removed.isEmpty()) {
+                EventLog.log(EventLog.Level.INFO, "label.replace", entry.getKey(), -1, "sha", state.newSha, "added", added, "removed", removed);
+                changes.add(api.changeLabelsAsync(state.issueUrl, added, removed, newLabels));
+            }
+            state.sha = state.newSha;
+            state.newSha = null;
+            state.labels = Collections.emptyList();
+            dirty = true;
+        }
+        if (!changes.isEmpty()) {
+            System.out.printf("Replacing the labels of %d pull requests with new commits%n", changes.size());
+        }
+        for (CompletableFuture<Void> change : changes) {
+            try {
+                HttpTransport.join(change);
+            } catch (Exception e) {
+                e.printStackTrace(err);
             }
+        }
+        try {
+            save();
         } catch (IOException e) {
             e.printStackTrace(err);
         }
-        */
     }
 
-    private List<String> getLabels(final ModelNode issue) {
-        final List<String> result = new ArrayList<>();
-        final ModelNode node = issue.get("labels");
-        if (node.isDefined()) {
-            final List<ModelNode> labels = node.asList();
-            for (ModelNode label : labels) {
-                result.add(label.get("name").asString());
-            }
+    /**
+     * Drops the states of the pull requests which are no longer open.
+     *
+     * @param openPulls the numbers of all open pull requests
+     */
+    synchronized void retain(final Set<Integer> openPulls) {
+        if (pulls.keySet().retainAll(openPulls)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Writes the issue states if they have changed.
+     *
+     * @throws IOException if the file could not be written
+     */
+    synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        final ModelNode node = new ModelNode();
+        final ModelNode pulls = node.get("pulls").setEmptyObject();
+        for (Map.Entry<Integer, IssueState> entry : this.pulls.entrySet()) {
+            pulls.get(String.valueOf(entry.getKey())).set(entry.getValue().toModel());
         }
-        return result;
+        final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(tmp, StandardCharsets.UTF_8))) {
+            node.writeJSONString(writer, true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
+    private static class IssueState {
+        String sha;
+        final String issueUrl;
+        // set while the new commits have not been processed, with the labels the pull request had at that time
+        String newSha;
+        List<String> labels = Collections.emptyList();
+
+        IssueState(final String sha, final String issueUrl) {
+            this.sha = sha;
+            this.issueUrl = issueUrl;
+        }
+
+        private ModelNode toModel() {
+            final ModelNode node = new ModelNode();
+            node.get("sha").set(sha);
+            node.get("issue-url").set(issueUrl);
+            if (newSha != null) {
+                node.get("new-sha").set(newSha);
+                final ModelNode labels = node.get("labels").setEmptyList();
+                for (String label : this.labels) {
+                    labels.add(label);
+                }
+            }
+            return node;
+        }
+
+        private static IssueState fromModel(final ModelNode node) {
+            final IssueState state = new IssueState(node.get("sha").asString(), node.get("issue-url").asString());
+            if (node.hasDefined("new-sha")) {
+                state.newSha = node.get("new-sha").asString();
+                final List<String> labels = new ArrayList<>();
+                if (node.hasDefined("labels")) {
+                    for (ModelNode label : node.get("labels").asList()) {
+                        labels.add(label.asString());
+                    }
+                }
+                state.labels = labels;
+            }
+            return state;
+        }
+    }
 }
@@ -0,0 +1,52 @@
+package org.jboss.pull.player;
+
+import java.util.function.Function;
+
+/**
+ * Decides whether a pull request should have a label, evaluated by the {@link LabelProcessor} for every open pull
+ * request. Rules only look at the pull request they are given, so they must not make any requests.
+ */
+interface LabelRule {
+
+    /**
+     * @return the label this rule decides about
+     */
+    String getLabel();
+
+    /**
+     * Decides whether the pull request should have the label.
+     *
+     * @param pull the pull request
+     *
+     * @return {@code true} if the label should be added, {@code false} if it should be removed, {@code null} to leave
+     * the labels as they are
+     */
+    Boolean wants(PullRequest pull);
+
+    /**
+     * Creates a rule from a function.
+     *
+     * @param label the label
+     * @param wants decides whether a pull request should have the label, see {@link #wants(PullRequest)}
+     *
+     * @return the rule
+     */
+    static LabelRule of(final String label, final Function<PullRequest, Boolean> wants) {
+        return new LabelRule() {
+            @Override
+            public String getLabel() {
+                return label;
+            }
+
+            @Override
+            public Boolean wants(final PullRequest pull) {
+                return wants.apply(pull);
+            }
+
+            @Override
+            public String toString() {
+                return "LabelRule{" + label + "}";
+            }
+        };
+    }
+}
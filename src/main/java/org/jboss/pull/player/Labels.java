@@ -22,8 +22,10 @@
 
 package org.jboss.pull.player;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -42,6 +44,7 @@ class Labels {
     private final Map<String, String> replacements;
     private String rebaseThis;
     private String fixMe;
+    private final List<LabelRule> rules = new ArrayList<>();
 
     /**
      * Creates the labels looking up the labels in the properties.
@@ -51,7 +54,6 @@ class Labels {
         final String prop = properties.getProperty("issue.labels");
         if (prop == null) {
             replacements = Collections.emptyMap();
-            return;
         } else {
             final String[] labels = prop.split(",");
             replacements = new HashMap<>();
@@ -68,6 +70,14 @@ class Labels {
 
         this.rebaseThis = properties.getProperty("issue.label.rebase");
         this.fixMe = properties.getProperty("issue.label.fixme");
+        if (rebaseThis != null && !rebaseThis.trim().isEmpty()) {
+            // pull requests which can't be merged need a rebase, the label goes once they can be merged again
+            rules.add(LabelRule.of(rebaseThis.trim(), pull -> pull.mergeable == null ? null : !pull.mergeable));
+        }
+        if (fixMe != null && !fixMe.trim().isEmpty()) {
+            // a clean merge state means the checks passed, the label is only ever removed
+            rules.add(LabelRule.of(fixMe.trim(), pull -> "clean".equals(pull.mergeableState) ? Boolean.FALSE : null));
+        }
     }
 
     /**
@@ -81,6 +91,13 @@ class Labels {
         return replacements.containsKey(label);
     }
 
+    /**
+     * @return {@code true} if any labels are to be removed or replaced when a pull request gets new commits
+     */
+    boolean hasReplacements() {
+        return !replacements.isEmpty();
+    }
+
     /**
      * Gets the optional replacement label.
      *
@@ -92,6 +109,16 @@ class Labels {
         return replacements.get(label);
     }
 
+    /**
+     * Returns the rules deciding the labels of open pull requests, built from {@code issue.label.rebase} and
+     * {@code issue.label.fixme}.
+     *
+     * @return the rules
+     */
+    List<LabelRule> getRules() {
+        return rules;
+    }
+
     public String getRebaseThis() {
         return rebaseThis;
     }
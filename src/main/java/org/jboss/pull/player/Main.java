@@ -18,13 +18,19 @@ public class Main {
 
         boolean dry = args.length == 1 && args[0].equals("--dry");
         // quick hack to dump gh data
-        boolean dumpPr = args.length == 2 && args[0].equals("--dump");
-        PullPlayer player = new PullPlayer(dry);
+        boolean dumpPr = (args.length == 2 || args.length == 3) && args[0].equals("--dump");
+        Repositories repositories = new Repositories(dry);
         System.out.println("Starting at: " + PullPlayer.getTime());
         if (dumpPr) {
             String pr = args[1];
             if (pr == null || "".equals(pr)) {
-                System.out.println("PR number is required for --dump <pr_number>");
+                System.out.println("PR number is required for --dump <pr_number> [<owner/name>]");
+                return;
+            }
+            // the first repository unless another one is given
+            PullPlayer player = args.length == 3 ? repositories.get(args[2]) : repositories.getPlayers().iterator().next();
+            if (player == null) {
+                System.out.println("Repository " + args[2] + " is not configured");
                 return;
             }
             int pri = Integer.parseInt(pr);
@@ -32,12 +38,12 @@ public class Main {
             return;
         }
         try {
-            player.checkPullRequests();
+            repositories.checkPullRequests();
         } catch (Exception e) {
             e.printStackTrace(System.err);
             //System.exit(1);
         } finally {
-            player.cleanup();
+            repositories.cleanup();
         }
         System.out.println("Completed at: " + PullPlayer.getTime());
     }
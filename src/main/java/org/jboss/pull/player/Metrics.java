@@ -0,0 +1,334 @@
+package org.jboss.pull.player;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.regex.Pattern;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Counters and latency histograms of the player, exported in the Prometheus text format and as the
+ * {@code org.jboss.pull.player:type=Metrics} MXBean.
+ * <p/>
+ * Every request of the GitHub and TeamCity clients is timed by the interceptors installed by {@link HttpTransport},
+ * the endpoint is the path of the request with the numbers and hashes replaced, so all pull requests share one
+ * histogram. Recording only adds to {@link LongAdder}s, the values are summed when they are exported.
+ */
+class Metrics implements MetricsMXBean {
+    private static final String START = Metrics.class.getName() + ".start";
+    private static final double[] HTTP_BUCKETS = {0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+    private static final double[] CYCLE_BUCKETS = {1, 5, 10, 30, 60, 120, 300, 600, 1800};
+    // path segments which identify a single pull request, comment, build or commit
+    private static final Pattern ID = Pattern.compile("(?<=/)(\\d+|[0-9a-f]{40}|id:\\d+)(?=/|$)");
+
+    private final ConcurrentMap<String, Histogram> latencies = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> statuses = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> cycles = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final LongAdder evaluated = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder triggered = new LongAdder();
+    private volatile double lastCycle;
+    private HttpServer server;
+    private ObjectName name;
+
+    /**
+     * @return an interceptor recording the start of each request, installed first
+     */
+    HttpRequestInterceptor requestStart() {
+        return (HttpRequest request, HttpContext context) -> context.setAttribute(START, System.nanoTime());
+    }
+
+    /**
+     * @return an interceptor recording the latency and the status of each response, installed first so it doesn't time
+     * the other interceptors
+     */
+    HttpResponseInterceptor responseEnd() {
+        return (HttpResponse response, HttpContext context) -> {
+            final Object start = context.getAttribute(START);
+            if (!(start instanceof Long)) {
+                return;
+            }
+            final HttpClientContext clientContext = HttpClientContext.adapt(context);
+            final HttpHost target = clientContext.getTargetHost();
+            final String service = target == null ? "unknown" : target.getHostName();
+            String path = clientContext.getRequest().getRequestLine().getUri();
+            if (!path.startsWith("/")) {
+                path = path.substring(Math.max(0, path.indexOf('/', path.indexOf("//") + 2)));
+            }
+            final int query = path.indexOf('?');
+            final String endpoint = ID.matcher(query < 0 ? path : path.substring(0, query)).replaceAll("{id}");
+            final String method = clientContext.getRequest().getRequestLine().getMethod();
+            latencies.computeIfAbsent(labels("service", service, "method", method, "endpoint", endpoint), k -> new Histogram(HTTP_BUCKETS))
+                    .record((System.nanoTime() - (Long) start) / 1e9);
+            statuses.computeIfAbsent(labels("service", service, "status", String.valueOf(response.getStatusLine().getStatusCode())), k -> new LongAdder())
+                    .increment();
+        };
+    }
+
+    /**
+     * Exports a value read when the metrics are exported.
+     *
+     * @param name  the name of the metric
+     * @param help  the description of the metric
+     * @param value reads the current value
+     */
+    void gauge(final String name, final String help, final DoubleSupplier value) {
+        gauges.put(name, new Gauge(help, value));
+    }
+
+    /**
+     * Records the pull requests of a processing cycle.
+     *
+     * @param evaluated the number of pull requests processed
+     * @param skipped   the number of pull requests skipped because they have not changed
+     */
+    void pulls(final int evaluated, final int skipped) {
+        this.evaluated.add(evaluated);
+        this.skipped.add(skipped);
+    }
+
+    /**
+     * Records a build triggered for a pull request.
+     */
+    void triggered() {
+        triggered.increment();
+    }
+
+    /**
+     * Records the duration of a cycle.
+     *
+     * @param cycle  the name of the cycle, for example {@code check}
+     * @param millis the duration in milliseconds
+     */
+    void cycle(final String cycle, final long millis) {
+        final double seconds = millis / 1000.0;
+        cycles.computeIfAbsent(labels("cycle", cycle), k -> new Histogram(CYCLE_BUCKETS)).record(seconds);
+        lastCycle = seconds;
+    }
+
+    /**
+     * Registers the MXBean and starts serving {@code /metrics} if a port is given.
+     *
+     * @param port the port to serve the Prometheus endpoint on, 0 or less to only register the MXBean
+     *
+     * @throws IOException if the server could not be bound
+     */
+    synchronized void start(final int port) throws IOException {
+        try {
+            final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName("org.jboss.pull.player:type=Metrics");
+            if (!mBeanServer.isRegistered(name)) {
+                mBeanServer.registerMBean(this, name);
+                this.name = name;
+            }
+        } catch (JMException e) {
+            System.err.println("Could not register the metrics MXBean: " + e);
+        }
+        if (port > 0) {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+            server.createContext("/metrics", this::handle);
+            server.start();
+            System.out.printf("Serving metrics on port %d%n", server.getAddress().getPort());
+        }
+    }
+
+    synchronized void stop() {
+        if (server != null) {
+            server.stop(1);
+            server = null;
+        }
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException ignore) {
+            }
+            name = null;
+        }
+    }
+
+    /**
+     * @return the metrics in the Prometheus text format
+     */
+    String export() {
+        final StringBuilder out = new StringBuilder(4096);
+        histograms(out, "pull_player_http_request_duration_seconds", "Time until the response headers were received", latencies);
+        out.append("# HELP pull_player_http_requests_total Responses received by status\n");
+        out.append("# TYPE pull_player_http_requests_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(statuses).entrySet()) {
+            out.append("pull_player_http_requests_total{").append(entry.getKey()).append("} ").append(entry.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(gauges).entrySet()) {
+            out.append("# HELP ").append(entry.getKey()).append(' ').append(entry.getValue().help).append('\n');
+            out.append("# TYPE ").append(entry.getKey()).append(" gauge\n");
+            out.append(entry.getKey()).append(' ').append(entry.getValue().value.getAsDouble()).append('\n');
+        }
+        counter(out, "pull_player_pulls_evaluated_total", "Pull requests processed", evaluated.sum());
+        counter(out, "pull_player_pulls_skipped_total", "Pull requests skipped because they have not changed", skipped.sum());
+        counter(out, "pull_player_pulls_triggered_total", "Builds triggered", triggered.sum());
+        histograms(out, "pull_player_cycle_duration_seconds", "Duration of the cycles", cycles);
+        return out.toString();
+    }
+
+    @Override
+    public long getRequests() {
+        long total = 0;
+        for (LongAdder count : statuses.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getRequestsByStatus() {
+        final Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : statuses.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getMeanLatencyMillis() {
+        final Map<String, Double> result = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : latencies.entrySet()) {
+            final long count = entry.getValue().count.sum();
+            result.put(entry.getKey(), count == 0 ? 0.0 : entry.getValue().sum.sum() / 1e6 / count);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getGauges() {
+        final Map<String, Double> result = new TreeMap<>();
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().value.getAsDouble());
+        }
+        return result;
+    }
+
+    @Override
+    public long getPullsEvaluated() {
+        return evaluated.sum();
+    }
+
+    @Override
+    public long getPullsSkipped() {
+        return skipped.sum();
+    }
+
+    @Override
+    public long getPullsTriggered() {
+        return triggered.sum();
+    }
+
+    @Override
+    public double getLastCycleSeconds() {
+        return lastCycle;
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            final byte[] body = export().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void histograms(final StringBuilder out, final String name, final String help, final Map<String, Histogram> histograms) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            final Histogram histogram = entry.getValue();
+            final String labels = entry.getKey();
+            long cumulative = 0;
+            for (int i = 0; i < histogram.bounds.length; i++) {
+                cumulative += histogram.buckets[i].sum();
+                out.append(name).append("_bucket{").append(labels).append(",le=\"").append(histogram.bounds[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            final long count = histogram.count.sum();
+            out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+            out.append(name).append("_sum{").append(labels).append("} ").append(histogram.sum.sum() / 1e9).append('\n');
+            out.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+        }
+    }
+
+    private static void counter(final StringBuilder out, final String name, final String help, final long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String labels(final String... namesAndValues) {
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append(namesAndValues[i]).append("=\"").append(namesAndValues[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return result.toString();
+    }
+
+    private static class Histogram {
+        final double[] bounds;
+        final LongAdder[] buckets;
+        final LongAdder count = new LongAdder();
+        // in nanoseconds, so the sum stays a long
+        final LongAdder sum = new LongAdder();
+
+        Histogram(final double[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(final double seconds) {
+            for (int i = 0; i < bounds.length; i++) {
+                if (seconds <= bounds[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add((long) (seconds * 1e9));
+        }
+    }
+
+    private static class Gauge {
+        final String help;
+        final DoubleSupplier value;
+
+        Gauge(final String help, final DoubleSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
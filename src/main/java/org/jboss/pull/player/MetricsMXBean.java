@@ -0,0 +1,40 @@
+package org.jboss.pull.player;
+
+import java.util.Map;
+
+/**
+ * The metrics of the player exposed over JMX as {@code org.jboss.pull.player:type=Metrics}.
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return the number of responses received from GitHub and TeamCity
+     */
+    long getRequests();
+
+    /**
+     * @return the number of responses by service and status
+     */
+    Map<String, Long> getRequestsByStatus();
+
+    /**
+     * @return the mean latency in milliseconds by service, method and endpoint
+     */
+    Map<String, Double> getMeanLatencyMillis();
+
+    /**
+     * @return the current values of the gauges, like the cache hit ratio and the remaining rate limit
+     */
+    Map<String, Double> getGauges();
+
+    long getPullsEvaluated();
+
+    long getPullsSkipped();
+
+    long getPullsTriggered();
+
+    /**
+     * @return the duration of the last cycle in seconds
+     */
+    double getLastCycleSeconds();
+}
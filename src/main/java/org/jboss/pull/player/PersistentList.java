@@ -5,47 +5,56 @@
  */
 package org.jboss.pull.player;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * A set of names backed by a file. Lookups and updates are safe to use from multiple threads.
+ * <p/>
+ * Several processes can share the file, names are appended through a {@link SharedLog}. Names added by other processes
+ * are seen after the next change or {@link #refresh()}.
+ *
  * @author Jason T. Greene
  * @author Tomaz Cerar
  */
 public class PersistentList {
-    private final Set<String> list;
-    private final File file;
+    // replaced as a whole when the file is read again, so lookups never see a partially read list
+    private volatile Set<String> list = ConcurrentHashMap.newKeySet();
+    private final SharedLog log;
 
-    private PersistentList(Set<String> list, File file) {
-        this.list = list;
-        this.file = file;
+    private PersistentList(File file) {
+        this.log = new SharedLog(file.toPath(), lines -> {
+            final Set<String> loaded = ConcurrentHashMap.newKeySet();
+            loaded.addAll(lines);
+            list = loaded;
+        }, line -> list.add(line));
     }
 
     public static PersistentList loadList(String fileName) {
-        BufferedReader reader = null;
+        return loadList(Util.BASE_DIR, fileName);
+    }
+
+    /**
+     * Loads a list from a state directory, creating the file if it doesn't exist.
+     *
+     * @param dir      the state directory
+     * @param fileName the name of the file in the directory
+     *
+     * @return the list
+     */
+    public static PersistentList loadList(File dir, String fileName) {
         try {
-            File file = new File(Util.BASE_DIR, fileName);
+            File file = new File(dir, fileName);
             file.createNewFile();
-            reader = new BufferedReader(new FileReader(file));
-            HashSet<String> list = new HashSet<>();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                list.add(line);
-            }
-            return new PersistentList(list, file);
-        } catch (FileNotFoundException e) {
-            throw new IllegalStateException(e);
+            final PersistentList list = new PersistentList(file);
+            list.refresh();
+            return list;
         } catch (IOException e) {
             throw new IllegalStateException(e);
-        } finally {
-            Util.safeClose(reader);
         }
     }
 
@@ -54,16 +63,10 @@ public class PersistentList {
     }
 
     public void add(String user) {
-        list.add(user);
-        PrintWriter stream = null;
-        try {
-            stream = new PrintWriter(new FileOutputStream(file, true));
-            stream.println(user);
-        } catch (FileNotFoundException e) {
-            throw new IllegalStateException(e);
-        } finally {
-            Util.safeClose(stream);
+        if (list.contains(user)) {
+            return;
         }
+        log.append(() -> list.add(user) ? Collections.singletonList(user) : Collections.emptyList());
     }
 
     public boolean remove(String name) {
@@ -74,17 +77,14 @@ public class PersistentList {
         return list.contains(o);
     }
 
+    /**
+     * Reads the names added by other processes since the last read.
+     */
+    public void refresh() {
+        log.refresh();
+    }
+
     public void saveAll() {
-        PrintWriter stream = null;
-        try {
-            stream = new PrintWriter(new FileOutputStream(file, false));
-            for (String el : list) {
-                stream.println(el);
-            }
-        } catch (FileNotFoundException e) {
-            throw new IllegalStateException(e);
-        } finally {
-            Util.safeClose(stream);
-        }
+        log.replace(() -> new ArrayList<>(list));
     }
 }
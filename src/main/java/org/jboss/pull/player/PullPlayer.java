@@ -1,46 +1,179 @@
 package org.jboss.pull.player;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.jboss.dmr.ModelNode;
 
 /**
  * @author Tomaz Cerar (c) 2013 Red Hat Inc.
  */
 public class PullPlayer {
+    // how often the open pull requests are listed in GraphQL mode to drop the state of closed ones, when the checks
+    // only query the pull requests updated since the last check
+    private static final long RETAIN_INTERVAL = TimeUnit.HOURS.toMillis(1);
 
-    // old control strings, deprecated
-    private static final Pattern okToTest = Pattern.compile(".*ok\\W+to\\W+test.*", Pattern.DOTALL);
-    private static final Pattern retest = Pattern.compile(".*retest\\W+this\\W+please.*", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-
+    private final String repository;
     private final GitHubApi gitHubApi;
     private final TeamCityApi teamCityApi;
     private final LabelProcessor labelProcessor;
     private final boolean whitelistEnabled;
+    private final boolean graphQL;
+    private final boolean labelGraphQL;
+    private final int buildSnapshotSize;
+    private final Executor executor;
+    private final PersistentList whiteList;
+    private final PersistentList adminList;
+    private final Jobs jobs;
+    private final CommentFeed commentFeed;
+    private final PullStates pullStates;
+    private final TriggerLedger triggerLedger;
+    private final CommentCleaner commentCleaner;
+    private final Metrics metrics;
+    private final Shards shards;
+    // the instances sharing the pull requests at the last check
+    private List<String> members;
+    private long lastRetain;
+    // closed with the player if it isn't shared with other players
+    private HttpTransport ownedTransport;
+    private final long recheckDelay;
+    private final int recheckMaxDelay;
+    private final int recheckMax;
     private String githubLogin;
 
     protected PullPlayer(final boolean dryRun) throws Exception {
+        this(dryRun, HttpTransport.create(Util.optionalInt("pull.processing.threads", 1)));
+    }
+
+    private PullPlayer(final boolean dryRun, final HttpTransport transport) throws Exception {
+        this(Util.require("github.repo"), Util.BASE_DIR, dryRun, createBudget(), createHttpCache(), transport, null, null);
+        ownedTransport = transport;
+    }
+
+    /**
+     * Creates the player of a repository, the HTTP transport, the ETag cache and the rate limit budget may be shared
+     * with the players of other repositories.
+     *
+     * @param githubRepo the repository, as {@code owner/name}
+     * @param stateDir   the directory the state of the repository is kept in
+     * @param executor   runs the processing of pull requests, {@code null} to create threads for this player
+     * @param shards     decides which pull requests this instance processes, {@code null} to process all of them
+     */
+    PullPlayer(final String githubRepo, final File stateDir, final boolean dryRun, final RateLimitBudget budget,
+               final HttpCache httpCache, final HttpTransport transport, final Executor executor, final Shards shards) throws Exception {
+        this(stateDir, dryRun, new GitHubApi(Util.require("github.token"), githubRepo, dryRun, budget, httpCache, transport),
+                createTeamCityApi(githubRepo, dryRun, transport), null, null, Util.require("github.login"), executor, shards);
+    }
+
+    /**
+     * Creates the player of the repository of the given clients, also used to run the pull request processing against
+     * stubbed clients.
+     *
+     * @param stateDir    the directory the state of the repository is kept in
+     * @param whiteList   the white list, {@code null} to load the one of the state directory
+     * @param adminList   the admin list, {@code null} to load the one of the state directory
+     * @param githubLogin the login of the player on GitHub
+     * @param executor    runs the processing of pull requests, {@code null} to create threads for this player
+     * @param shards      decides which pull requests this instance processes, {@code null} to process all of them
+     */
+    PullPlayer(final File stateDir, final boolean dryRun, final GitHubApi gitHubApi, final TeamCityApi teamCityApi,
+               final PersistentList whiteList, final PersistentList adminList, final String githubLogin,
+               final Executor executor, final Shards shards) throws Exception {
+        final String githubRepo = gitHubApi.getRepository();
+        this.githubLogin = githubLogin;
+        // number of pull requests processed at the same time, 1 keeps the old sequential behavior
+        final int threads = Util.optionalInt("pull.processing.threads", 1);
+        this.repository = githubRepo;
+        this.shards = shards;
+        stateDir.mkdirs();
+        // the lists, the completed jobs and the trigger ledger are shared by the instances, the stores of what an
+        // instance has seen are kept for each instance
+        final Path state = shards == null ? stateDir.toPath() : stateDir.toPath().resolve("instances").resolve(shards.getId());
+        Files.createDirectories(state);
+        this.gitHubApi = gitHubApi;
+        this.teamCityApi = teamCityApi;
+
+        this.whitelistEnabled = Util.optionalBoolean(Util.repositoryKey(githubRepo, "whitelist.enabled"), true);
+        System.out.println("White list enabled for " + githubRepo + ": " + whitelistEnabled);
+        // fetch pull requests with their details and comments in bulk instead of one request each
+        this.graphQL = Util.optionalBoolean("github.graphql", false);
+        this.labelGraphQL = Util.optionalBoolean("github.labels.graphql", true);
+        // number of recent builds per build type fetched up front each cycle, 0 looks up builds for each pull request
+        buildSnapshotSize = Util.optionalInt("teamcity.snapshot.size", 0);
+        labelProcessor = new LabelProcessor(gitHubApi, state.resolve("issues.json"));
+        if (executor != null) {
+            this.executor = executor;
+        } else {
+            System.out.println("Pull processing threads: " + threads);
+            this.executor = threads > 1 ? Executors.newFixedThreadPool(threads, new PullThreadFactory()) : null;
+        }
+        // the lists write through to disk on every change, so they only need to be read once
+        this.whiteList = whiteList != null ? whiteList : PersistentList.loadList(stateDir, "white-list");
+        this.adminList = adminList != null ? adminList : PersistentList.loadList(stateDir, "admin-list");
+        jobs = new Jobs(stateDir);
+        // read new comments of the whole repository once per cycle instead of all comments of each pull request
+        commentFeed = new CommentFeed(state.resolve("comment-feed.json"),
+                Util.optionalBoolean("github.comment.feed", false), githubLogin, this.whiteList, this.adminList);
+        pullStates = new PullStates(state.resolve("pull-states.json"));
+        // builds requested within the window are not requested again for the same sha unless a retest is asked for
+        triggerLedger = new TriggerLedger(stateDir.toPath().resolve("trigger-ledger.json"),
+                Duration.ofMinutes(Util.optionalInt("teamcity.trigger.window", 60)), dryRun);
+        // pull requests GitHub has not computed the mergeable state for are polled again within the cycle, starting
+        // after delay milliseconds and doubling up to max-delay seconds, for at most max seconds
+        recheckDelay = Util.optionalInt("github.mergeable.recheck.delay", 2000);
+        recheckMaxDelay = Util.optionalInt("github.mergeable.recheck.max-delay", 16);
+        recheckMax = Util.optionalInt("github.mergeable.recheck.max", 60);
+        // the cleaner deletes at most threads comments at a time with at least interval milliseconds between deletions
+        commentCleaner = new CommentCleaner(gitHubApi, githubLogin, state.resolve("comment-cleanup.json"),
+                Util.optionalInt("cleanup.threads", 2), Util.optionalInt("cleanup.delete.interval", 1000), dryRun);
+        metrics = gitHubApi.getMetrics();
+    }
+
+    private static TeamCityApi createTeamCityApi(final String githubRepo, final boolean dryRun, final HttpTransport transport) throws Exception {
         String teamcityHost = Util.require("teamcity.host");
         int teamcityPort = Integer.parseInt(Util.require("teamcity.port"));
-        String teamcityBranchMapping = Util.require("teamcity.build.branch-mapping");
-        githubLogin = Util.require("github.login");
-        String githubToken = Util.require("github.token");
-        String githubRepo = Util.require("github.repo");
+        // each repository needs build types of its own, builds are matched to pull requests by number
+        String teamcityBranchMapping = Util.require(Util.repositoryKey(githubRepo, "teamcity.build.branch-mapping"));
         String user = Util.require("teamcity.user");
         String password = Util.require("teamcity.password");
-        gitHubApi = new GitHubApi(githubToken, githubRepo, dryRun);
+        final boolean disabled = Util.optionalBoolean(Util.repositoryKey(githubRepo, "teamcity.disabled"), false);
+        return new TeamCityApi(teamcityHost, teamcityPort, user, password, teamcityBranchMapping, dryRun, disabled, transport);
+    }
 
-        final boolean disabled = Util.optionalBoolean("teamcity.disabled", false);
-        this.whitelistEnabled = Util.optionalBoolean("whitelist.enabled", true);
-        System.out.println("White list enabled: " + whitelistEnabled);
-        teamCityApi = new TeamCityApi(teamcityHost, teamcityPort, user, password, teamcityBranchMapping, dryRun, disabled);
-        labelProcessor = new LabelProcessor(gitHubApi);
+    /**
+     * @return the budget for the GitHub rate limit configured in {@code player.properties}
+     */
+    static RateLimitBudget createBudget() {
+        // requests kept for triggering builds when the labeler and cleaner run low on the rate limit
+        return new RateLimitBudget(Util.optionalInt("github.ratelimit.reserve", 500), Util.optionalInt("github.ratelimit.max-wait", 60));
+    }
+
+    /**
+     * @return the ETag cache configured in {@code player.properties}
+     */
+    static HttpCache createHttpCache() {
+        return new HttpCache(Util.BASE_DIR.toPath().resolve("http-cache.bin"),
+                Util.optionalInt("github.cache.size", 1000), Util.optionalInt("github.cache.max-body", 1024 * 1024));
     }
 
     static String getTime() {
@@ -50,185 +183,331 @@ public class PullPlayer {
     }
 
 
-    boolean noBuildPending(int pull, List queue) {
-        return !queue.contains(pull);
+    boolean noBuildPending(int pull, String branch, BuildQueue queue) {
+        return !queue.contains(teamCityApi.getBuildTypeId(branch), pull);
     }
 
-    private void processPulls(PersistentList whiteList, PersistentList adminList, List<ModelNode> nodes) {
-        final List<Integer> queue = teamCityApi.getQueuedBuilds();
-        for (ModelNode pull : nodes) {
-            System.out.println("---------------------------------------------------------------------------------");
-            int pullNumber = pull.get("number").asInt();
-            String user = pull.get("user", "login").asString();
-            // note this sha is the commit id of the PR, not the test merge sha, that is fetched below.
-            String sha1 = pull.get("head", "sha").asString();
-            String branch = pull.get("base", "ref").asString();
-            if (sha1 == null) {
-                System.err.println("Could not get sha1 for pull: " + pullNumber);
-                continue;
+    void processPulls(PersistentList whiteList, PersistentList adminList, List<PullRequest> pulls) {
+        final long start = System.nanoTime();
+        // pick up the approvals and builds recorded by other processes sharing the state directory
+        whiteList.refresh();
+        adminList.refresh();
+        jobs.refresh();
+        // pull requests which have not changed since they were last processed to the end need no requests at all
+        final List<PullRequest> nodes = new ArrayList<>(pulls.size());
+        for (PullRequest pull : pulls) {
+            if (!pullStates.isUnchanged(pull, whiteList.has(pull.user))) {
+                nodes.add(pull);
             }
-            System.out.printf("number: %d login: %s sha1: %s, branch: %s\n", pullNumber, user, sha1, branch);
-
-            if (!teamCityApi.hasBranchMapping(branch)) {
-                System.out.printf("Pull request %s send against target branch %s, but there is no build type defined for it.\n", pullNumber, branch);
-                continue;
+        }
+        System.out.printf("Processing %d of %d pull requests of %s, the others have not changed%n", nodes.size(), pulls.size(), repository);
+        metrics.pulls(nodes.size(), pulls.size() - nodes.size());
+        if (nodes.isEmpty()) {
+            EventLog.log(EventLog.Level.INFO, "pulls.processed", -1, System.nanoTime() - start, "repo", repository, "evaluated", 0, "skipped", pulls.size());
+            return;
+        }
+        commentFeed.update(gitHubApi);
+        final BuildQueue queue = teamCityApi.getQueuedBuilds();
+        if (buildSnapshotSize > 0) {
+            teamCityApi.refreshSnapshot(buildSnapshotSize);
+        }
+        List<PullRequest> unknown = processAll(whiteList, adminList, queue, nodes);
+        // GitHub computes the mergeable state in the background after a change, poll only the pull requests still
+        // waiting for it instead of leaving them until the next cycle
+        long delay = recheckDelay;
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(recheckMax);
+        while (!unknown.isEmpty()) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                final List<Integer> numbers = new ArrayList<>(unknown.size());
+                for (PullRequest pull : unknown) {
+                    numbers.add(pull.number);
+                }
+                System.err.printf("Mergeable state still unknown after %d seconds, retrying next cycle: %s%n", recheckMax, numbers);
+                break;
             }
-
-            // Add the pull to the label processor
-            labelProcessor.add(pull);
-
-            boolean help = false;
-            boolean retrigger = false;
-            boolean retriggerFailed = false;
-            Instant retriggerDate = null;
-            boolean whitelistNotify = true;
-            String commentId = "";
-
-            ModelNode prDetails = gitHubApi.getPullRequestDetails(pullNumber);
-
-            // not all pr information is available on the pr list, and in order for a test merge to be created
-            // the pr details have to be either fetched or looked at in the browser. If mergeable is false or null
-            // then the pr is skipped and rechecked on the next run
-            // see: https://developer.github.com/v3/git/#checking-mergeability-of-pull-requests
-            boolean mergeable = false;
-            String mergeCommitSha = null;
-
-            if (prDetails != null) {
-                mergeable = prDetails.get("mergeable").asString("false").equals("true");
+            System.out.printf("Rechecking the mergeable state of %d pull requests in %d ms%n", unknown.size(), Math.min(delay, remaining));
+            try {
+                Thread.sleep(Math.min(delay, remaining));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while rechecking pull requests", e);
             }
+            delay = Math.min(delay * 2, TimeUnit.SECONDS.toMillis(recheckMaxDelay));
+            final List<CompletableFuture<PullRequest>> details = new ArrayList<>(unknown.size());
+            for (PullRequest pull : unknown) {
+                details.add(gitHubApi.getPullRequestDetailsAsync(pull.number));
+            }
+            final List<PullRequest> known = new ArrayList<>(unknown.size());
+            final List<PullRequest> waiting = new ArrayList<>(unknown.size());
+            for (int i = 0; i < unknown.size(); i++) {
+                final PullRequest pull = HttpTransport.join(details.get(i));
+                if (pull != null && pull.isOpen() && !isMergeableUnknown(pull)) {
+                    known.add(pull);
+                } else if (pull == null || pull.isOpen()) {
+                    waiting.add(unknown.get(i));
+                }
+            }
+            unknown = waiting;
+            if (!known.isEmpty()) {
+                // the details are complete, so processing them again doesn't fetch them a second time
+                unknown.addAll(processAll(whiteList, adminList, queue, known));
+            }
+        }
+        EventLog.log(EventLog.Level.INFO, "pulls.processed", -1, System.nanoTime() - start, "repo", repository, "evaluated", nodes.size(),
+                "skipped", pulls.size() - nodes.size(), "mergeable-unknown", unknown.size());
+    }
 
-            // this is the test commit created that is a merge onto the branch the pr has been opened against.
-            // see: https://developer.github.com/v3/pulls/#response-1
-            // this also need the vcs root to be configured against +:refs/(pull/*)/merge in order to match
-            // if the PR is marked as mergeable and the mergeCommitSha is not null or missing, the /merge test ref
-            // is present and the PR can be tested
-            if (mergeable) {
-                mergeCommitSha = prDetails.get("merge_commit_sha").asString();
+    /**
+     * Processes the pull requests, on the processing threads if there are more than one.
+     *
+     * @return the pull requests which could not be built because GitHub has not computed their mergeable state yet
+     */
+    private List<PullRequest> processAll(PersistentList whiteList, PersistentList adminList, BuildQueue queue, List<PullRequest> nodes) {
+        final List<PullRequest> unknown = new ArrayList<>();
+        if (executor == null) {
+            for (PullRequest pull : nodes) {
+                if (processPull(whiteList, adminList, queue, pull)) {
+                    unknown.add(pull);
+                }
             }
-            String commentsUrl = pull.get("comments_url").asString(); //get url for comments
-            List<Comment> comments = gitHubApi.getComments(commentsUrl);
-
-            String job = null;
-            // if mergeCommitSha isn't set, we're still waiting on the gh api to update the /merge ref, so we'll retry
-            if (mergeCommitSha != null) {
-                job = Jobs.getCompletedJob(sha1);
-                // also look for a previously completed job via mergecommitsha also, this is for compat with some already run jobs
-                if (job == null) {
-                    job = Jobs.getCompletedJob(mergeCommitSha);
+            return unknown;
+        }
+        final List<Future<Boolean>> results = new ArrayList<>(nodes.size());
+        for (PullRequest pull : nodes) {
+            results.add(CompletableFuture.supplyAsync(() -> processPull(whiteList, adminList, queue, pull), executor));
+        }
+        // Wait for every pull request before reporting failures so one bad pull doesn't stop the others
+        IllegalStateException failure = null;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                if (results.get(i).get()) {
+                    unknown.add(nodes.get(i));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while processing pull requests", e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = new IllegalStateException("Could not process pull request", e.getCause());
+                } else {
+                    failure.addSuppressed(e.getCause());
                 }
             }
-            // comments == null indicates a NOT-MODIFIED response. A new PR will have an empty
-            // but not null comments collection.
-            if (comments != null) {
-                for (Comment comment : comments) {
-                    commentId = comment.id;
-
-                    if (whiteList.has(user) && whiteList.has(comment.user) && job != null && (retest.matcher(comment.comment).matches() || comment.comment.startsWith(Command.RETEST.getCommand()))) {
-                        retriggerDate = comment.created;
-                        retrigger = true;
-                        continue;
-                    }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return unknown;
+    }
 
-                    if (!whiteList.has(user) && adminList.has(comment.user) && okToTest.matcher(comment.comment).matches() || comment.comment.startsWith(Command.OK_TO_TEST.getCommand())) {
-                        whiteList.add(user);
-                        retriggerDate = comment.created;
-                        retrigger = true;
-                    }
+    /**
+     * @return {@code true} if GitHub is still computing whether the pull request can be merged or the test merge
+     * commit of a mergeable pull request
+     */
+    private static boolean isMergeableUnknown(PullRequest details) {
+        return details == null || details.mergeable == null || (details.isMergeable() && details.mergeCommitSha == null);
+    }
 
-                    if (!whiteList.has(user) && adminList.has(comment.user) && comment.comment.startsWith(Command.RETEST_FAILED.getCommand())) {
-                        whiteList.add(user);
-                        retriggerDate = comment.created;
-                        retrigger = false;
-                        retriggerFailed = true;
-                    }
+    /**
+     * Processes a pull request, triggering a build if needed.
+     *
+     * @return {@code true} if the pull request is waiting for GitHub to compute its mergeable state
+     */
+    boolean processPull(PersistentList whiteList, PersistentList adminList, BuildQueue queue, PullRequest pull) {
+        final long start = System.nanoTime();
+        int pullNumber = pull.number;
+        String user = pull.user;
+        // note this sha is the commit id of the PR, not the test merge sha, that is fetched below.
+        String sha1 = pull.headSha;
+        String branch = pull.baseRef;
+        if (sha1 == null) {
+            return decided(pull, start, "no-sha", null, false);
+        }
 
-                    if (githubLogin.equals(comment.user) && comment.comment.contains("triggering")) {
-                        retrigger = false;
-                        continue;
-                    }
+        if (!teamCityApi.hasBranchMapping(branch)) {
+            pullStates.record(pull, null, whiteList.has(user), null, true);
+            return decided(pull, start, "no-build-type", null, false);
+        }
 
-                    if (githubLogin.equals(comment.user) && comment.comment.contains("running")) {
-                        retrigger = false;
-                        continue;
-                    }
+        // Add the pull to the label processor
+        labelProcessor.add(pull);
+
+        boolean retrigger = false;
+        Instant retriggerDate = null;
+        Instant retestDate = null;
+        boolean whitelistNotify = true;
+
+        // the pull request list doesn't contain the mergeable state, a pull request fetched on its own already does.
+        // The details and the comments are fetched at the same time, the comments only if they are not summarized yet.
+        CompletableFuture<PullRequest> details = pull.hasMergeable ? CompletableFuture.completedFuture(pull) : gitHubApi.getPullRequestDetailsAsync(pullNumber);
+        final CommentFeed.Summary known = commentFeed.get(pullNumber);
+        CompletableFuture<CommentFeed.Summary> pendingSummary = known != null ? CompletableFuture.completedFuture(known)
+                : gitHubApi.getCommentsAsync(pull).thenApply(comments -> comments == null ? null : commentFeed.summarize(pullNumber, comments));
+        PullRequest prDetails = HttpTransport.join(details);
+
+        // not all pr information is available on the pr list, and in order for a test merge to be created
+        // the pr details have to be either fetched or looked at in the browser. If mergeable is false the pr is
+        // skipped until the next run, if it is null it is rechecked by processPulls until GitHub has computed it
+        // see: https://developer.github.com/v3/git/#checking-mergeability-of-pull-requests
+        boolean mergeable = false;
+        String mergeCommitSha = null;
 
-                    if (githubLogin.equals(comment.user) && comment.comment.contains("verify this patch")) {
-                        whitelistNotify = false;
-                        help=true;
-                        continue;
-                    }
+        if (prDetails != null) {
+            mergeable = prDetails.isMergeable();
+        }
 
-                }
-            } else {
-                // not modified since last time we checked the comments
-                whitelistNotify = false;
-                retrigger = false;
+        // this is the test commit created that is a merge onto the branch the pr has been opened against.
+        // see: https://developer.github.com/v3/pulls/#response-1
+        // this also need the vcs root to be configured against +:refs/(pull/*)/merge in order to match
+        // if the PR is marked as mergeable and the mergeCommitSha is not null or missing, the /merge test ref
+        // is present and the PR can be tested
+        if (mergeable) {
+            mergeCommitSha = prDetails.mergeCommitSha;
+        }
+        CommentFeed.Summary comments = HttpTransport.join(pendingSummary);
+
+        String job = null;
+        // if mergeCommitSha isn't set, we're still waiting on the gh api to update the /merge ref, so we'll retry
+        if (mergeCommitSha != null) {
+            job = jobs.getCompletedJob(sha1);
+            // also look for a previously completed job via mergecommitsha also, this is for compat with some already run jobs
+            if (job == null) {
+                job = jobs.getCompletedJob(mergeCommitSha);
             }
-
-            if (whitelistEnabled) {
-                if (job == null && !verifyWhitelist(whiteList, user, pullNumber, whitelistNotify)) {
-                    System.out.println("User not on approved tester list, user: " + user);
-                    continue;
+        }
+        // comments == null indicates a NOT-MODIFIED response. A new PR will have an empty
+        // but not null summary.
+        if (comments != null) {
+            synchronized (comments) {
+                final boolean wasWhitelisted = whiteList.has(user);
+                // the command form is accepted from anyone, the deprecated phrase only until the user is approved
+                final Instant okToTest = latest(comments.okToTest, wasWhitelisted ? null : comments.okToTestPhrase);
+                final Instant retestFailed = wasWhitelisted ? null : comments.retestFailed;
+                if (okToTest != null || retestFailed != null) {
+                    whiteList.add(user);
+                }
+                final Instant retest = whiteList.has(user) && job != null ? comments.retest : null;
+                retestDate = whiteList.has(user) ? comments.retest : null;
+
+                // the latest of the requests and the builds triggered by the player decides
+                final Instant requested = latest(retest, okToTest);
+                final Instant handled = latest(comments.triggered, retestFailed);
+                retrigger = requested != null && (handled == null || requested.isAfter(handled));
+                retriggerDate = latest(requested, retestFailed);
+                if (comments.verifyRequested != null) {
+                    whitelistNotify = false;
                 }
             }
+        } else {
+            // not modified since last time we checked the comments
+            whitelistNotify = false;
+            retrigger = false;
+        }
 
-            if (mergeable == true && mergeCommitSha == null) {
-                System.out.println("No valid merge_commit_sha found on PR, skipping.");
-                continue;
-            }
-            System.out.printf("merge commit sha: %s\n", mergeCommitSha);
-            TeamCityBuild build = null;
-            if (mergeCommitSha != null) {
-                build = teamCityApi.findBuild(pullNumber, sha1, branch);
-                if (build != null) {
-                    System.out.println("found build: " + build.toString());
-                }
-                // for legacy compatability and to avoid requeuing all jobs, we check if build is null for a build with the previously used mergecommitsha as well
-                if (build == null) {
-                    build = teamCityApi.findBuild(pullNumber, mergeCommitSha, branch);
-                    if (build != null) {
-                        System.out.println("sha1 build: " + build.toString());
-                    }
-                }
+        if (whitelistEnabled) {
+            if (job == null && !verifyWhitelist(whiteList, user, pullNumber, whitelistNotify)) {
+                pullStates.record(pull, prDetails, false, null, true);
+                return decided(pull, start, "not-approved", null, false);
             }
+        }
 
-            System.out.println("retrigger = " + retrigger);
-            if (retrigger) {
-                if (build != null && build.getQueuedDate().isAfter(retriggerDate)) {
-                    System.out.println("Not triggering as newer build already exists");
-                    retrigger = false;
-                } else if (queue.contains(pullNumber)) {
-                    System.out.println("Build already queued");
-                } else if (build != null && build.isRunning()) {
-                    System.out.println("Build already running");
-                } else {
-                    job = null;
-                    Jobs.remove(sha1);
-                }
+        if (mergeable == true && mergeCommitSha == null) {
+            pullStates.record(pull, prDetails, whiteList.has(user), null, false);
+            return decided(pull, start, "no-merge-commit", null, true);
+        }
+        TeamCityBuild build = null;
+        if (mergeCommitSha != null) {
+            build = teamCityApi.findBuild(pullNumber, sha1, branch);
+            // for legacy compatability and to avoid requeuing all jobs, we check if build is null for a build with the previously used mergecommitsha as well
+            if (build == null) {
+                build = teamCityApi.findBuild(pullNumber, mergeCommitSha, branch);
             }
+        }
 
-            if (job != null) {
-                System.out.println("Already done: " + pullNumber);
-                continue;
+        String retriggerSkipped = null;
+        if (retrigger) {
+            if (build != null && build.getQueuedDate().isAfter(retriggerDate)) {
+                retriggerSkipped = "newer-build";
+                retrigger = false;
+            } else if (!noBuildPending(pullNumber, branch, queue)) {
+                retriggerSkipped = "queued";
+            } else if (build != null && build.isRunning()) {
+                retriggerSkipped = "running";
+            } else {
+                job = null;
+                jobs.remove(sha1);
             }
+        }
+        if (retriggerSkipped != null && EventLog.isEnabled(EventLog.Level.DEBUG)) {
+            EventLog.log(EventLog.Level.DEBUG, "pull.retrigger-skipped", pullNumber, -1, "repo", repository, "reason", retriggerSkipped, "build", build);
+        }
 
-            if (build != null && !retrigger) {
-                if (build.getStatus() != null) {
-                    Jobs.storeCompletedJob(sha1, pullNumber, build.getBuild());
-                } else {
-                    System.out.println("In progress, skipping: " + pullNumber);
+        if (job != null) {
+            pullStates.record(pull, prDetails, whiteList.has(user), build, true);
+            return decided(pull, start, "done", job, false);
+        }
+
+        boolean settled = false;
+        final String outcome;
+        Object detail = build;
+        if (build != null && !retrigger) {
+            if (build.getStatus() != null) {
+                jobs.storeCompletedJob(sha1, pullNumber, build.getBuild());
+                settled = true;
+                outcome = "completed";
+            } else {
+                outcome = "in-progress";
+            }
+        } else if (mergeable && mergeCommitSha != null && sha1 != null && noBuildPending(pullNumber, branch, queue)) {
+            final String buildTypeId = teamCityApi.getBuildTypeId(branch);
+            if (triggerLedger.claim(buildTypeId, pullNumber, sha1, retestDate)) {
+                String queueId = null;
+                try {
+                    queueId = teamCityApi.triggerJob(pullNumber, sha1, branch);
+                    if (queueId != null) {
+                        metrics.triggered();
+                    }
+                } finally {
+                    triggerLedger.triggered(buildTypeId, pullNumber, sha1, queueId);
                 }
-            } else if (mergeable && mergeCommitSha != null && sha1 != null && noBuildPending(pullNumber, queue)) {
-                teamCityApi.triggerJob(pullNumber, sha1, branch);
+                outcome = queueId == null ? "trigger-failed" : "triggered";
+                detail = queueId;
             } else {
-                System.out.println("Pending build, skipping: " + pullNumber);
+                outcome = "recently-triggered";
             }
+        } else if (isMergeableUnknown(prDetails)) {
+            pullStates.record(pull, prDetails, whiteList.has(user), build, false);
+            return decided(pull, start, "mergeable-unknown", null, true);
+        } else {
+            outcome = "pending";
         }
+        pullStates.record(pull, prDetails, whiteList.has(user), build, settled);
+        return decided(pull, start, outcome, detail, false);
+    }
+
+    /**
+     * Logs the decision taken for a pull request with the time it took.
+     *
+     * @param detail the build, job or queued build the decision is based on, may be {@code null}
+     *
+     * @return {@code unknown}
+     */
+    private boolean decided(final PullRequest pull, final long start, final String outcome, final Object detail, final boolean unknown) {
+        EventLog.log(EventLog.Level.INFO, "pull.decision", pull.number, System.nanoTime() - start, "repo", repository, "outcome", outcome,
+                "user", pull.user, "sha", pull.headSha, "branch", pull.baseRef, "detail", detail);
+        return unknown;
+    }
+
+    private static Instant latest(Instant first, Instant second) {
+        if (first == null) {
+            return second;
+        }
+        return second == null || first.isAfter(second) ? first : second;
     }
 
     private boolean verifyWhitelist(PersistentList whiteList, String user, int pullNumber, boolean notify) {
         if (!whiteList.has(user)) {
-            System.out.printf("Skipping %s\n", user);
             if (notify) {
                 StringBuilder buf = new StringBuilder();
                 buf.append("<p>Hello, " + user + ". I'm waiting for one of the admins to verify this patch with " + Command.OK_TO_TEST.getCommand() + " in a comment.</p>");
@@ -252,37 +531,169 @@ public class PullPlayer {
         return buf.toString();
     }
 
-    public void dumpPullRequestData(final int prNumber) {
-        ModelNode node = gitHubApi.getPullRequestDetails(prNumber);
+    public void dumpPullRequestData(final int prNumber) throws IOException {
+        final String json = gitHubApi.getPullRequestJson(prNumber);
         System.out.println("Dumping PR: " + prNumber);
-        System.out.println(node.toJSONString(false));
+        System.out.println(json);
+        final PullRequest pull;
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            pull = PullRequest.read(reader);
+        }
         boolean mergeable = false;
-        String mergeablestr = node.get("mergeable").asString("");
+        String mergeablestr = pull.mergeable == null ? "" : pull.mergeable.toString();
         System.out.println("mergeable on PR details: mergeable = " + mergeablestr);
-        mergeable = node.get("mergeable").asString("false").equals("true");
+        mergeable = pull.isMergeable();
         System.out.println("Using translated mergeable value of: " + mergeable);
-        String mergeCommitSha = node.get("merge_commit_sha").asString();
+        String mergeCommitSha = pull.mergeCommitSha;
         System.out.println("merge_commit_sha: " + mergeCommitSha);
     }
 
     protected void checkPullRequests() {
-        final PersistentList whiteList = PersistentList.loadList("white-list");
-        final PersistentList adminList = PersistentList.loadList("admin-list");
-
-        List<ModelNode> nodes = gitHubApi.getPullRequests();
-        processPulls(whiteList, adminList, nodes);
+        // allow for the clock of GitHub being a little ahead, unchanged pull requests are skipped anyway
+        final Instant start = Instant.now().minusSeconds(60);
+        final Shards.Ring ring = shards == null ? null : shards.ring();
+        // pull requests moved to this instance may not have changed since the last check, so all of them are listed
+        final boolean rebalanced = ring != null && !ring.getMembers().equals(members);
+        List<PullRequest> nodes = graphQL ? gitHubApi.getPullRequestsGraphQL(rebalanced ? Instant.EPOCH : pullStates.getSince()) : gitHubApi.getPullRequests();
+        processPulls(whiteList, adminList, owned(ring, nodes));
+        pullStates.checked(start);
+        if (ring != null) {
+            members = ring.getMembers();
+        }
 
         // Process the labels after each pull has been added
         labelProcessor.process();
+
+        final Set<Integer> openPulls = openPullRequests();
+        if (openPulls != null) {
+            lastRetain = System.currentTimeMillis();
+            jobs.compact(openPulls);
+            commentFeed.retain(openPulls);
+            pullStates.retain(openPulls);
+            triggerLedger.retain(openPulls);
+            labelProcessor.retain(openPulls);
+        }
+    }
+
+    /**
+     * @return the numbers of all open pull requests if the check has seen all of them or they are due to be listed,
+     * otherwise {@code null}
+     */
+    private Set<Integer> openPullRequests() {
+        final Set<Integer> openPulls = gitHubApi.getOpenPullRequests();
+        if (openPulls != null || !graphQL || System.currentTimeMillis() - lastRetain < RETAIN_INTERVAL) {
+            return openPulls;
+        }
+        try {
+            return gitHubApi.getOpenPullRequestNumbers();
+        } catch (RateLimitBudget.ExhaustedException e) {
+            System.out.println("Not listing the open pull requests of " + repository + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Processes only the given pull requests, for example the ones a webhook delivery was received for. Pull requests
+     * belonging to another shard are left to it.
+     *
+     * @param requested the numbers of the pull requests to process
+     */
+    protected void checkPullRequests(final Set<Integer> requested) {
+        final Set<Integer> pullNumbers = new LinkedHashSet<>(requested);
+        if (shards != null) {
+            final Shards.Ring ring = shards.ring();
+            pullNumbers.removeIf(pullNumber -> !ring.owns(repository, pullNumber));
+        }
+        final List<CompletableFuture<PullRequest>> details = new ArrayList<>(pullNumbers.size());
+        for (int pullNumber : pullNumbers) {
+            details.add(gitHubApi.getPullRequestDetailsAsync(pullNumber));
+        }
+        final List<PullRequest> nodes = new ArrayList<>(pullNumbers.size());
+        int i = 0;
+        for (int pullNumber : pullNumbers) {
+            final PullRequest pull = HttpTransport.join(details.get(i++));
+            if (pull == null) {
+                System.out.printf("Pull request %d has not been modified, skipping.%n", pullNumber);
+            } else if (!pull.isOpen()) {
+                System.out.printf("Pull request %d is not open, skipping.%n", pullNumber);
+            } else {
+                nodes.add(pull);
+            }
+        }
+        if (!nodes.isEmpty()) {
+            processPulls(whiteList, adminList, nodes);
+            labelProcessor.process();
+        }
+    }
+
+    /**
+     * @param branch the name of a branch, without {@code refs/heads/}
+     *
+     * @return the numbers of the pull requests against the branch this player has processed
+     */
+    Set<Integer> getPullsAgainst(final String branch) {
+        return pullStates.pullsAgainst(branch);
+    }
+
+    /**
+     * @return the repository of this player, as {@code owner/name}
+     */
+    String getRepository() {
+        return repository;
+    }
+
+    /**
+     * @return the GitHub rate limit budget used by this player
+     */
+    RateLimitBudget getBudget() {
+        return gitHubApi.getBudget();
+    }
+
+    /**
+     * @return the metrics of this player
+     */
+    Metrics getMetrics() {
+        return metrics;
     }
 
     protected void cleanup() throws IOException {
+        // a shared executor is shut down by its owner
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdown();
+            try {
+                ((ExecutorService) executor).awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        commentFeed.save();
+        pullStates.save();
+        labelProcessor.save();
         gitHubApi.close();
+        teamCityApi.close();
+        if (ownedTransport != null) {
+            ownedTransport.close();
+        }
+        EventLog.flush();
+    }
+
+    /**
+     * Writes any cached state to disk without releasing resources, used between cycles of a long running player.
+     *
+     * @throws IOException if the state could not be written
+     */
+    protected void flush() throws IOException {
+        commentFeed.save();
+        pullStates.save();
+        labelProcessor.save();
+        gitHubApi.flush();
     }
 
     protected void checkRebaseRequired() throws IOException {
-        List<ModelNode> nodes = gitHubApi.getIssuesWithPullRequests();
-        labelProcessor.process(nodes);
+        // the labels and mergeable state of all open pull requests in a few bulk queries, the REST API needs a request
+        // per pull request for the mergeable state
+        List<PullRequest> nodes = labelGraphQL ? gitHubApi.getAllPullRequestsGraphQL() : gitHubApi.getIssuesWithPullRequests();
+        labelProcessor.process(owned(shards == null ? null : shards.ring(), nodes));
 
     }
 
@@ -298,14 +709,47 @@ public class PullPlayer {
     }
 
     void cleanupComments() {
-        gitHubApi.getAllIssues().stream()
-                .filter(node -> node.get("comments").asInt() > 2)
-                .forEach(node -> {
-                    gitHubApi.getCommentsForIssue(node.get("number").asInt()).stream()
-                            .filter(comment -> comment.user.equals(githubLogin))
-                            .forEach(gitHubApi::deleteComment);
-                });
+        cleanupComments(null);
+    }
 
+    /**
+     * Deletes the comments of the bot, stopping once the given time is up. The next cleanup continues where it stopped.
+     *
+     * @param limit the maximum duration of the cleanup, {@code null} to delete all comments
+     */
+    void cleanupComments(final Duration limit) {
+        if (shards != null && !shards.ring().ownsRepository(repository)) {
+            System.out.printf("The comments of %s are cleaned up by another shard%n", repository);
+            return;
+        }
+        commentCleaner.run(limit);
+    }
 
+    /**
+     * @return the pull requests which belong to this instance
+     */
+    private List<PullRequest> owned(final Shards.Ring ring, final List<PullRequest> pulls) {
+        if (ring == null) {
+            return pulls;
+        }
+        final List<PullRequest> result = new ArrayList<>(pulls.size());
+        for (PullRequest pull : pulls) {
+            if (ring.owns(repository, pull.number)) {
+                result.add(pull);
+            }
+        }
+        System.out.printf("Shard %s owns %d of %d pull requests of %s%n", shards.getId(), result.size(), pulls.size(), repository);
+        return result;
+    }
+
+    private static class PullThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "pull-player-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 }
@@ -0,0 +1,274 @@
+package org.jboss.pull.player;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The fields of a pull request used by the player, read from the REST or GraphQL API.
+ */
+class PullRequest {
+    final int number;
+    final String state;
+    final String user;
+    final String headSha;
+    final String baseRef;
+    final Instant updatedAt;
+    /**
+     * {@code true} if the mergeable state was part of the response, pull request lists don't contain it
+     */
+    final boolean hasMergeable;
+    /**
+     * {@code null} while GitHub is computing the mergeable state
+     */
+    final Boolean mergeable;
+    final String mergeableState;
+    final String mergeCommitSha;
+    final List<String> labels;
+    final String url;
+    final String issueUrl;
+    final String commentsUrl;
+    /**
+     * {@code null} if the comments were not fetched with the pull request
+     */
+    final List<Comment> comments;
+
+    private PullRequest(final int number, final String state, final String user, final String headSha, final String baseRef,
+                        final Instant updatedAt, final boolean hasMergeable, final Boolean mergeable, final String mergeableState,
+                        final String mergeCommitSha, final List<String> labels, final String url, final String issueUrl,
+                        final String commentsUrl, final List<Comment> comments) {
+        this.number = number;
+        this.state = state;
+        this.user = user;
+        this.headSha = headSha;
+        this.baseRef = baseRef;
+        this.updatedAt = updatedAt;
+        this.hasMergeable = hasMergeable;
+        this.mergeable = mergeable;
+        this.mergeableState = mergeableState;
+        this.mergeCommitSha = mergeCommitSha;
+        this.labels = labels;
+        this.url = url;
+        this.issueUrl = issueUrl;
+        this.commentsUrl = commentsUrl;
+        this.comments = comments;
+    }
+
+    boolean isMergeable() {
+        return Boolean.TRUE.equals(mergeable);
+    }
+
+    boolean isOpen() {
+        return "open".equals(state);
+    }
+
+    /**
+     * Reads a pull request in the format of the REST API.
+     *
+     * @param reader the reader positioned at the pull request object
+     *
+     * @return the pull request
+     */
+    static PullRequest read(final JsonReader reader) throws IOException {
+        int number = -1;
+        String state = null;
+        String user = null;
+        String headSha = null;
+        String baseRef = null;
+        Instant updatedAt = Instant.EPOCH;
+        boolean hasMergeable = false;
+        Boolean mergeable = null;
+        String mergeableState = null;
+        String mergeCommitSha = null;
+        List<String> labels = Collections.emptyList();
+        String url = null;
+        String issueUrl = null;
+        String commentsUrl = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "number":
+                    number = reader.nextInt();
+                    break;
+                case "state":
+                    state = reader.nextString();
+                    break;
+                case "user":
+                    user = reader.nextNestedString("login");
+                    break;
+                case "head":
+                    headSha = reader.nextNestedString("sha");
+                    break;
+                case "base":
+                    baseRef = reader.nextNestedString("ref");
+                    break;
+                case "updated_at":
+                    updatedAt = ZonedDateTime.parse(reader.nextString()).toInstant();
+                    break;
+                case "mergeable":
+                    hasMergeable = true;
+                    mergeable = reader.nextBoolean();
+                    break;
+                case "mergeable_state":
+                    mergeableState = reader.nextString();
+                    break;
+                case "merge_commit_sha":
+                    mergeCommitSha = reader.nextString();
+                    break;
+                case "labels":
+                    labels = readLabels(reader);
+                    break;
+                case "url":
+                    url = reader.nextString();
+                    break;
+                case "issue_url":
+                    issueUrl = reader.nextString();
+                    break;
+                case "comments_url":
+                    commentsUrl = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new PullRequest(number, state, user, headSha, baseRef, updatedAt, hasMergeable, mergeable, mergeableState,
+                mergeCommitSha, labels, url, issueUrl, commentsUrl, null);
+    }
+
+    /**
+     * Reads a pull request returned by the GraphQL query of {@link GitHubApi}.
+     *
+     * @param reader      the reader positioned at the pull request object
+     * @param repoUrl     the REST URL of the repository, used to build the REST URLs of the pull request
+     * @param maxComments the number of comments requested, if the pull request has more comments they are not kept
+     *
+     * @return the pull request
+     */
+    static PullRequest readGraphQL(final JsonReader reader, final String repoUrl, final int maxComments) throws IOException {
+        int number = -1;
+        String user = "ghost";
+        String headSha = null;
+        String baseRef = null;
+        Instant updatedAt = Instant.EPOCH;
+        Boolean mergeable = null;
+        String mergeableState = "unknown";
+        String mergeCommitSha = null;
+        List<String> labels = Collections.emptyList();
+        List<Comment> comments = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "number":
+                    number = reader.nextInt();
+                    break;
+                case "updatedAt":
+                    updatedAt = ZonedDateTime.parse(reader.nextString()).toInstant();
+                    break;
+                case "headRefOid":
+                    headSha = reader.nextString();
+                    break;
+                case "baseRefName":
+                    baseRef = reader.nextString();
+                    break;
+                case "mergeable":
+                    // UNKNOWN is kept as null, the same as the REST API returns while GitHub computes the state
+                    final String value = reader.nextString();
+                    if ("MERGEABLE".equals(value)) {
+                        mergeable = Boolean.TRUE;
+                    } else if ("CONFLICTING".equals(value)) {
+                        mergeable = Boolean.FALSE;
+                    }
+                    break;
+                case "mergeStateStatus":
+                    final String status = reader.nextString();
+                    if (status != null) {
+                        mergeableState = status.toLowerCase(Locale.ROOT);
+                    }
+                    break;
+                case "author":
+                    final String login = reader.nextNestedString("login");
+                    if (login != null) {
+                        user = login;
+                    }
+                    break;
+                case "potentialMergeCommit":
+                    mergeCommitSha = reader.nextNestedString("oid");
+                    break;
+                case "labels":
+                    labels = readNodes(reader);
+                    break;
+                case "comments":
+                    comments = readGraphQLComments(reader, maxComments);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new PullRequest(number, "open", user, headSha, baseRef, updatedAt, true, mergeable, mergeableState,
+                mergeCommitSha, labels, repoUrl + "/pulls/" + number, repoUrl + "/issues/" + number,
+                repoUrl + "/issues/" + number + "/comments", comments);
+    }
+
+    @Override
+    public String toString() {
+        return "PullRequest: {number: " + number + ", state: " + state + ", user: " + user + ", head: " + headSha
+                + ", base: " + baseRef + ", updated: " + updatedAt + ", mergeable: " + mergeable + ", mergeable_state: "
+                + mergeableState + ", merge_commit_sha: " + mergeCommitSha + ", labels: " + labels + "}";
+    }
+
+    private static List<String> readLabels(final JsonReader reader) throws IOException {
+        final List<String> result = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            result.add(reader.nextNestedString("name"));
+        }
+        reader.endArray();
+        return Collections.unmodifiableList(result);
+    }
+
+    private static List<String> readNodes(final JsonReader reader) throws IOException {
+        List<String> result = Collections.emptyList();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("nodes".equals(reader.nextName())) {
+                result = readLabels(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return result;
+    }
+
+    private static List<Comment> readGraphQLComments(final JsonReader reader, final int maxComments) throws IOException {
+        int totalCount = 0;
+        final List<Comment> result = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if ("totalCount".equals(name)) {
+                totalCount = reader.nextInt();
+            } else if ("nodes".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    result.add(Comment.readGraphQL(reader));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        // only the latest comments were returned, the caller has to fetch all of them
+        if (totalCount > maxComments) {
+            return null;
+        }
+        return Collections.unmodifiableList(result);
+    }
+}
@@ -0,0 +1,241 @@
+package org.jboss.pull.player;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.Property;
+
+/**
+ * The state of every open pull request as seen when it was last processed, stored in {@code pull-states.json}.
+ * <p/>
+ * A pull request is skipped without any request if it is {@link #isUnchanged(PullRequest, boolean) unchanged}: its
+ * head, base, labels and last update are the same as when it was last processed, the author is still in the same
+ * state on the white list and the last processing had a final result, a completed build or nothing to build. Pull
+ * requests waiting for a build, for GitHub to compute the merge commit or for a merge conflict to be resolved are
+ * processed again each cycle.
+ */
+class PullStates {
+    private final Path file;
+    private final Map<Integer, State> states = new ConcurrentHashMap<>();
+    private volatile Instant lastCheck = Instant.EPOCH;
+    private volatile boolean dirty;
+
+    PullStates(final Path file) {
+        this.file = file;
+        if (Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                final ModelNode node = ModelNode.fromJSONStream(in);
+                if (node.hasDefined("last-check")) {
+                    lastCheck = Instant.parse(node.get("last-check").asString());
+                }
+                if (node.hasDefined("pulls")) {
+                    for (Property property : node.get("pulls").asPropertyList()) {
+                        states.put(Integer.parseInt(property.getName()), State.fromModel(property.getValue()));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Could not load the pull request states, all pull requests will be processed: " + e);
+                lastCheck = Instant.EPOCH;
+                states.clear();
+            }
+        }
+    }
+
+    /**
+     * Checks whether the pull request can be skipped.
+     *
+     * @param pull        the pull request as listed
+     * @param whitelisted whether the author is on the white list
+     *
+     * @return {@code true} if the pull request has not changed since it was last processed with a final result
+     */
+    boolean isUnchanged(final PullRequest pull, final boolean whitelisted) {
+        final State state = states.get(pull.number);
+        return state != null && state.settled
+                && whitelisted == state.whitelisted
+                && Objects.equals(pull.headSha, state.headSha)
+                && Objects.equals(pull.baseRef, state.baseRef)
+                && pull.updatedAt.equals(state.updatedAt)
+                && pull.labels.equals(state.labels);
+    }
+
+    /**
+     * Records the result of processing a pull request.
+     *
+     * @param pull        the pull request as listed
+     * @param details     the pull request with its mergeable state, may be {@code null}
+     * @param whitelisted whether the author is on the white list
+     * @param build       the last TeamCity build of the pull request, may be {@code null}
+     * @param settled     {@code true} if processing the pull request again would not change anything unless the pull
+     *                    request changes
+     */
+    void record(final PullRequest pull, final PullRequest details, final boolean whitelisted, final TeamCityBuild build, final boolean settled) {
+        final State state = new State();
+        state.headSha = pull.headSha;
+        state.baseRef = pull.baseRef;
+        state.updatedAt = pull.updatedAt;
+        state.labels = pull.labels;
+        state.whitelisted = whitelisted;
+        if (details != null) {
+            state.mergeable = details.mergeable;
+            state.mergeCommitSha = details.mergeCommitSha;
+        }
+        if (build != null) {
+            state.build = build.getBuild();
+            state.buildStatus = build.isRunning() ? "RUNNING" : build.getStatus();
+        }
+        state.settled = settled;
+        states.put(pull.number, state);
+        dirty = true;
+    }
+
+    /**
+     * @return the time pull requests have to be updated after to need processing, pull requests without a final
+     * result are always processed
+     */
+    Instant getSince() {
+        Instant result = lastCheck;
+        for (State state : states.values()) {
+            if (!state.settled && state.updatedAt.isBefore(result)) {
+                result = state.updatedAt.minusSeconds(1);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Records that all pull requests updated before the given time have been processed.
+     *
+     * @param time the time the pull requests were listed
+     */
+    void checked(final Instant time) {
+        lastCheck = time;
+        dirty = true;
+    }
+
+    /**
+     * @param branch the name of a branch, without {@code refs/heads/}
+     *
+     * @return the numbers of the pull requests against the branch, as seen when they were last processed
+     */
+    Set<Integer> pullsAgainst(final String branch) {
+        final Set<Integer> result = new TreeSet<>();
+        for (Map.Entry<Integer, State> entry : states.entrySet()) {
+            if (branch.equals(entry.getValue().baseRef)) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drops the states of the pull requests which are no longer open.
+     *
+     * @param openPulls the numbers of all open pull requests
+     */
+    void retain(final Set<Integer> openPulls) {
+        if (states.keySet().retainAll(openPulls)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Writes the states if they have changed.
+     *
+     * @throws IOException if the file could not be written
+     */
+    void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        final ModelNode node = new ModelNode();
+        node.get("last-check").set(lastCheck.toString());
+        final ModelNode pulls = node.get("pulls").setEmptyObject();
+        for (Map.Entry<Integer, State> entry : states.entrySet()) {
+            pulls.get(String.valueOf(entry.getKey())).set(entry.getValue().toModel());
+        }
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(tmp, StandardCharsets.UTF_8))) {
+            node.writeJSONString(writer, true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static class State {
+        String headSha;
+        String baseRef;
+        Instant updatedAt;
+        List<String> labels = Collections.emptyList();
+        boolean whitelisted;
+        Boolean mergeable;
+        String mergeCommitSha;
+        int build = -1;
+        String buildStatus;
+        boolean settled;
+
+        private ModelNode toModel() {
+            final ModelNode node = new ModelNode();
+            if (headSha != null) {
+                node.get("head").set(headSha);
+            }
+            if (baseRef != null) {
+                node.get("base").set(baseRef);
+            }
+            node.get("updated").set(updatedAt.toString());
+            final ModelNode labels = node.get("labels").setEmptyList();
+            for (String label : this.labels) {
+                labels.add(label);
+            }
+            node.get("whitelisted").set(whitelisted);
+            if (mergeable != null) {
+                node.get("mergeable").set(mergeable);
+            }
+            if (mergeCommitSha != null) {
+                node.get("merge-commit").set(mergeCommitSha);
+            }
+            if (build >= 0) {
+                node.get("build").set(build);
+                if (buildStatus != null) {
+                    node.get("build-status").set(buildStatus);
+                }
+            }
+            node.get("settled").set(settled);
+            return node;
+        }
+
+        private static State fromModel(final ModelNode node) {
+            final State state = new State();
+            state.headSha = node.hasDefined("head") ? node.get("head").asString() : null;
+            state.baseRef = node.hasDefined("base") ? node.get("base").asString() : null;
+            state.updatedAt = Instant.parse(node.get("updated").asString());
+            final List<String> labels = new ArrayList<>();
+            for (ModelNode label : node.get("labels").asList()) {
+                labels.add(label.asString());
+            }
+            state.labels = Collections.unmodifiableList(labels);
+            state.whitelisted = node.get("whitelisted").asBoolean();
+            state.mergeable = node.hasDefined("mergeable") ? node.get("mergeable").asBoolean() : null;
+            state.mergeCommitSha = node.hasDefined("merge-commit") ? node.get("merge-commit").asString() : null;
+            state.build = node.get("build").asInt(-1);
+            state.buildStatus = node.hasDefined("build-status") ? node.get("build-status").asString() : null;
+            state.settled = node.get("settled").asBoolean();
+            return state;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package org.jboss.pull.player;
+
+import java.net.HttpURLConnection;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+
+/**
+ * Tracks the GitHub API rate limits and decides whether a request may be sent.
+ * <p/>
+ * GitHub keeps a separate limit for each {@link Resource resource}, the REST API counts against {@code core} and the
+ * GraphQL API against the point based {@code graphql} limit. The budget keeps a token bucket for each of them, which
+ * is refilled from the {@code X-RateLimit-*} headers of the responses counted against it, as told by
+ * {@code X-RateLimit-Resource}, and reset once the reset time has passed. {@link Priority#HIGH High} priority
+ * requests, the ones needed to trigger builds, may use the whole budget. {@link Priority#LOW Low} priority requests,
+ * like the labeler and cleaner scans, are paced once half of the budget is used so they spread over the time left
+ * until the reset, and are refused once only the reserve is left. After a secondary rate limit or a
+ * {@code Retry-After} header, all requests wait until GitHub allows requests again.
+ * <p/>
+ * Requests that would have to wait longer than the configured maximum fail with an {@link ExhaustedException} so the
+ * cycle can end early instead of hanging.
+ */
+class RateLimitBudget {
+
+    enum Priority {
+        HIGH,
+        LOW,
+    }
+
+    /**
+     * The rate limits of GitHub a request may count against.
+     */
+    enum Resource {
+        CORE,
+        GRAPHQL,
+        ;
+
+        /**
+         * @return the resource named by {@code X-RateLimit-Resource}, {@code null} if it is not tracked
+         */
+        static Resource of(final String name) {
+            for (Resource resource : values()) {
+                if (resource.name().equalsIgnoreCase(name.trim())) {
+                    return resource;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final int reserve;
+    private final long maxWait;
+    private final Map<Resource, Bucket> buckets = new EnumMap<>(Resource.class);
+    private long blockedUntil;
+
+    /**
+     * Creates a new budget.
+     *
+     * @param reserve the number of requests kept for high priority requests
+     * @param maxWait the maximum number of seconds a request waits for the budget
+     */
+    RateLimitBudget(final int reserve, final int maxWait) {
+        this.reserve = reserve;
+        this.maxWait = TimeUnit.SECONDS.toMillis(maxWait);
+        for (Resource resource : Resource.values()) {
+            buckets.put(resource, new Bucket());
+        }
+    }
+
+    /**
+     * Takes a token from the budget, waiting if the request needs to be paced.
+     *
+     * @param resource the rate limit the request counts against
+     * @param priority the priority of the request
+     *
+     * @throws ExhaustedException if the request is not allowed or would have to wait too long
+     */
+    void acquire(final Resource resource, final Priority priority) {
+        long wait;
+        synchronized (this) {
+            final Bucket bucket = buckets.get(resource);
+            final long now = System.currentTimeMillis();
+            bucket.refill(now);
+            wait = Math.max(0, blockedUntil - now);
+            long nextLow = -1;
+            if (bucket.remaining == 0) {
+                wait = Math.max(wait, bucket.reset - now);
+            } else if (priority == Priority.LOW && bucket.remaining >= 0) {
+                if (bucket.remaining <= reserve) {
+                    throw new ExhaustedException(String.format("Deferring low priority request, only %d %s requests left until %tT",
+                            bucket.remaining, name(resource), bucket.reset));
+                }
+                // once half of the budget is used, spread the low priority requests over the time left until the reset
+                if (bucket.remaining < bucket.limit / 2) {
+                    final long interval = Math.max(0, bucket.reset - now) / (bucket.remaining - reserve);
+                    final long start = Math.max(now + wait, bucket.nextLow);
+                    nextLow = start + interval;
+                    wait = start - now;
+                }
+            }
+            if (wait > maxWait) {
+                throw new ExhaustedException(String.format("Rate limit requires waiting %d seconds, giving up", TimeUnit.MILLISECONDS.toSeconds(wait)));
+            }
+            // only an admitted request takes its pacing slot and its token
+            if (nextLow >= 0) {
+                bucket.nextLow = nextLow;
+            }
+            if (bucket.remaining > 0) {
+                bucket.remaining--;
+            }
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ExhaustedException("Interrupted waiting for the rate limit");
+            }
+        }
+    }
+
+    /**
+     * Updates the budget from the response headers.
+     *
+     * @param resource    the rate limit the request was acquired for, used if the response doesn't name one
+     * @param response    the response
+     * @param rateLimited {@code true} if the response was rejected because of a rate limit
+     *
+     * @return the number of seconds to wait before retrying if the request was rate limited, otherwise -1
+     */
+    synchronized long update(final Resource resource, final HttpResponse response, final boolean rateLimited) {
+        final Header resourceHeader = response.getFirstHeader("X-RateLimit-Resource");
+        final Resource counted = resourceHeader == null ? resource : Resource.of(resourceHeader.getValue());
+        // limits which are not tracked, like search, are only used for the wait after a rate limited response
+        final Bucket bucket = counted == null ? new Bucket() : buckets.get(counted);
+        final int status = response.getStatusLine().getStatusCode();
+        final long now = System.currentTimeMillis();
+        final int limitHeader = intHeader(response, "X-RateLimit-Limit");
+        final int remainingHeader = intHeader(response, "X-RateLimit-Remaining");
+        final int resetHeader = intHeader(response, "X-RateLimit-Reset");
+        if (limitHeader >= 0) {
+            bucket.limit = limitHeader;
+        }
+        if (remainingHeader >= 0) {
+            bucket.remaining = remainingHeader;
+        } else if (status == HttpURLConnection.HTTP_NOT_MODIFIED && bucket.remaining >= 0 && bucket.remaining < bucket.limit) {
+            // conditional requests answered with 304 don't count against the limit
+            bucket.remaining++;
+        }
+        if (resetHeader >= 0) {
+            bucket.reset = TimeUnit.SECONDS.toMillis(resetHeader);
+        }
+        long until = blockedUntil;
+        final int retryAfter = intHeader(response, "Retry-After");
+        if (retryAfter >= 0) {
+            blockedUntil = Math.max(blockedUntil, now + TimeUnit.SECONDS.toMillis(retryAfter));
+            until = blockedUntil;
+        } else if (rateLimited && bucket.remaining == 0) {
+            // primary limit: requests counting against the exhausted limit wait for its reset, the others go on
+            until = Math.max(until, bucket.reset);
+        } else if (rateLimited) {
+            // secondary limit without a hint, it applies to all requests: wait at least a minute
+            blockedUntil = Math.max(blockedUntil, now + TimeUnit.MINUTES.toMillis(1));
+            until = blockedUntil;
+        }
+        if (rateLimited || retryAfter >= 0) {
+            return TimeUnit.MILLISECONDS.toSeconds(Math.max(0, until - now));
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether a request with the given priority would currently be allowed without waiting for the reset.
+     *
+     * @param resource the rate limit the request would count against
+     * @param priority the priority of the request
+     *
+     * @return {@code true} if the request would be allowed
+     */
+    synchronized boolean allows(final Resource resource, final Priority priority) {
+        final Bucket bucket = buckets.get(resource);
+        final long now = System.currentTimeMillis();
+        bucket.refill(now);
+        if (blockedUntil - now > maxWait || bucket.remaining == 0) {
+            return false;
+        }
+        return priority == Priority.HIGH || bucket.remaining < 0 || bucket.remaining > reserve;
+    }
+
+    synchronized int getRemaining(final Resource resource) {
+        return buckets.get(resource).remaining;
+    }
+
+    synchronized int getLimit(final Resource resource) {
+        return buckets.get(resource).limit;
+    }
+
+    /**
+     * @return the time in milliseconds since the epoch at which the budget of the resource is reset
+     */
+    synchronized long getReset(final Resource resource) {
+        return buckets.get(resource).reset;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder result = new StringBuilder("RateLimitBudget: {");
+        for (Map.Entry<Resource, Bucket> entry : buckets.entrySet()) {
+            final Bucket bucket = entry.getValue();
+            if (result.charAt(result.length() - 1) != '{') {
+                result.append(", ");
+            }
+            result.append(String.format("%s: {remaining: %d, limit: %d, reset: %tT}", name(entry.getKey()), bucket.remaining, bucket.limit, bucket.reset));
+        }
+        return result.append('}').toString();
+    }
+
+    private static String name(final Resource resource) {
+        return resource.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static int intHeader(final HttpResponse response, final String name) {
+        final Header header = response.getFirstHeader(name);
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(header.getValue().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The budget of one rate limit.
+     */
+    private static class Bucket {
+        int limit = -1;
+        int remaining = -1;
+        long reset;
+        long nextLow;
+
+        void refill(final long now) {
+            if (remaining >= 0 && reset > 0 && now >= reset) {
+                remaining = limit;
+                nextLow = 0;
+            }
+        }
+    }
+
+    /**
+     * Thrown if a request is not allowed by the budget.
+     */
+    static class ExhaustedException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        ExhaustedException(final String message) {
+            super(message);
+        }
+    }
+}
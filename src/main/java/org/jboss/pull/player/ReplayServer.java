@@ -0,0 +1,156 @@
+package org.jboss.pull.player;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Serves the exchanges recorded by {@link HttpRecorder} on a local port, so a cycle of the player, the labeler or the
+ * cleaner can be run again without GitHub and TeamCity.
+ * <p/>
+ * A request is answered with the next recorded response for the same method, path and request body, in the order they
+ * were recorded. Once all of them have been served the last one is repeated. {@value HttpRecorder#BASE} in the
+ * recorded responses is replaced with the URL of this server. Point {@code github.api.url} and {@code teamcity.url} to
+ * the server and start from a copy of the state directory taken when the recording started, the player then sends the
+ * same requests. The number of requests served and missed is printed when the server stops.
+ * <p/>
+ * Usage: {@code ReplayServer <recording directory> [port]}, the default port is 8099.
+ */
+public class ReplayServer {
+    private final HttpServer server;
+    private final String base;
+    private final Map<String, Deque<ModelNode>> exchanges = new HashMap<>();
+    private final Map<String, Integer> served = new TreeMap<>();
+    private int missed;
+
+    ReplayServer(final Path dir, final int port) throws IOException {
+        final List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(HttpRecorder::isFixture).sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            final ModelNode fixture;
+            try (InputStream in = Files.newInputStream(file)) {
+                fixture = ModelNode.fromJSONStream(in);
+            }
+            final String key = HttpRecorder.key(fixture.get("method").asString(), fixture.get("uri").asString(),
+                    fixture.hasDefined("request-body") ? fixture.get("request-body").asString() : null);
+            exchanges.computeIfAbsent(key, k -> new ArrayDeque<>()).add(fixture);
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/", this::handle);
+        base = "http://localhost:" + server.getAddress().getPort();
+        System.out.printf("Loaded %d recorded exchanges from %s%n", files.size(), dir);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: ReplayServer <recording directory> [port]");
+            return;
+        }
+        final ReplayServer server = new ReplayServer(Paths.get(args[0]), args.length > 1 ? Integer.parseInt(args[1]) : 8099);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            stopped.countDown();
+        }, "replay-server-shutdown"));
+        server.start();
+        stopped.await();
+    }
+
+    void start() {
+        server.start();
+        System.out.println("Replaying on " + base);
+    }
+
+    void stop() {
+        server.stop(0);
+        report();
+    }
+
+    synchronized void report() {
+        int total = 0;
+        for (Map.Entry<String, Integer> entry : served.entrySet()) {
+            System.out.printf("%6d %s%n", entry.getValue(), entry.getKey());
+            total += entry.getValue();
+        }
+        System.out.printf("Served %d requests, %d requests had no recording%n", total, missed);
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            final byte[] requestBody = read(exchange.getRequestBody());
+            final String key = HttpRecorder.key(exchange.getRequestMethod(), exchange.getRequestURI().toString(),
+                    requestBody.length == 0 ? null : HttpRecorder.checksum(requestBody));
+            final ModelNode fixture = next(key);
+            if (fixture == null) {
+                System.err.println("No recording for " + key);
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+                return;
+            }
+            for (ModelNode header : fixture.get("headers").asList()) {
+                final String name = header.get("name").asString();
+                // the length and the encoding are set for the body sent here
+                if (!"Content-Length".equalsIgnoreCase(name) && !"Transfer-Encoding".equalsIgnoreCase(name)
+                        && !"Content-Encoding".equalsIgnoreCase(name) && !"Connection".equalsIgnoreCase(name)) {
+                    exchange.getResponseHeaders().add(name, header.get("value").asString().replace(HttpRecorder.BASE, base));
+                }
+            }
+            final int status = fixture.get("status").asInt();
+            if (!fixture.hasDefined("body")) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            final byte[] body = fixture.get("body").asString().replace(HttpRecorder.BASE, base).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private synchronized ModelNode next(final String key) {
+        final Deque<ModelNode> recorded = exchanges.get(key);
+        if (recorded == null) {
+            missed++;
+            return null;
+        }
+        served.merge(key, 1, Integer::sum);
+        return recorded.size() > 1 ? recorded.poll() : recorded.peek();
+    }
+
+    private static byte[] read(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,311 @@
+package org.jboss.pull.player;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The players of all repositories served by the process.
+ * <p/>
+ * The repositories are listed in {@code github.repos}, separated by commas. If it isn't set the single repository of
+ * {@code github.repo} is served and its state is kept in the base directory as before, otherwise the state of each
+ * repository, like its white list and completed jobs, is kept in {@code repos/<owner>/<name>}. Any setting read per
+ * repository, like {@code teamcity.build.branch-mapping}, can be overridden with {@code repo.<owner>/<name>.<setting>}.
+ * <p/>
+ * All players share the HTTP transport with its GitHub and TeamCity clients, the ETag cache and the GitHub rate limit
+ * budget. The check of each repository runs on its own thread, while the pull requests of all repositories are
+ * processed by the same {@code pull.processing.threads} threads of a {@link FairExecutor}, taking turns between
+ * repositories so a busy repository can't hold up the others. The labeler and the cleaner handle one repository after another, running them
+ * at the same time would multiply the rate of changes GitHub has to accept from the bot.
+ * <p/>
+ * If {@code shard.dir} is set, the pull requests are split with the other instances sharing the state directory, see
+ * {@link Shards}.
+ */
+class Repositories {
+    private final Map<String, PullPlayer> players = new LinkedHashMap<>();
+    private final RateLimitBudget budget;
+    private final HttpTransport transport;
+    private final FairExecutor processing;
+    private final ExecutorService checks;
+    private final Shards shards;
+    // the repository the next limited comment cleanup starts with
+    private int nextCleanup;
+
+    Repositories(final boolean dryRun) throws Exception {
+        final String names = Util.getProperties().getProperty("github.repos");
+        final int threads = Util.optionalInt("pull.processing.threads", 1);
+        budget = PullPlayer.createBudget();
+        final HttpCache httpCache = PullPlayer.createHttpCache();
+        transport = HttpTransport.create(threads);
+        shards = Shards.create();
+        if (shards != null) {
+            shards.start();
+            transport.getMetrics().gauge("pull_player_shard_members", "Instances sharing the pull requests", shards::getMembers);
+        }
+        if (names == null) {
+            final String name = Util.require("github.repo");
+            players.put(name, new PullPlayer(name, Util.BASE_DIR, dryRun, budget, httpCache, transport, null, shards));
+            processing = null;
+            checks = null;
+            return;
+        }
+        final List<String> repos = new ArrayList<>();
+        for (String name : names.split(",")) {
+            if (!name.trim().isEmpty()) {
+                repos.add(name.trim());
+            }
+        }
+        if (repos.isEmpty()) {
+            throw new RuntimeException("github.repos must list at least one repository in player.properties");
+        }
+        System.out.printf("Serving %d repositories with %d pull processing threads: %s%n", repos.size(), threads, repos);
+        processing = new FairExecutor(threads);
+        for (String name : repos) {
+            players.put(name, new PullPlayer(name, new File(Util.BASE_DIR, "repos/" + name), dryRun, budget, httpCache, transport,
+                    processing.forKey(name), shards));
+        }
+        final AtomicInteger count = new AtomicInteger();
+        checks = Executors.newFixedThreadPool(repos.size(), r -> {
+            final Thread thread = new Thread(r, "pull-player-repo-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the repositories, as {@code owner/name}
+     */
+    Set<String> getNames() {
+        return players.keySet();
+    }
+
+    /**
+     * @return the players, in the order the repositories are configured in
+     */
+    Collection<PullPlayer> getPlayers() {
+        return players.values();
+    }
+
+    /**
+     * @return the player of the repository, {@code null} if the repository is not served
+     */
+    PullPlayer get(final String repository) {
+        return players.get(repository);
+    }
+
+    /**
+     * @return the numbers of the pull requests of the repository against the branch, empty if the repository is not
+     * served
+     */
+    Set<Integer> getPullsAgainst(final String repository, final String branch) {
+        final PullPlayer player = players.get(repository);
+        return player == null ? Collections.emptySet() : player.getPullsAgainst(branch);
+    }
+
+    /**
+     * @return the GitHub rate limit budget shared by all players
+     */
+    RateLimitBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return the metrics shared by all players
+     */
+    Metrics getMetrics() {
+        return transport.getMetrics();
+    }
+
+    /**
+     * Checks the open pull requests of all repositories.
+     */
+    void checkPullRequests() {
+        final Map<String, Runnable> tasks = new LinkedHashMap<>();
+        for (PullPlayer player : players.values()) {
+            tasks.put(player.getRepository(), player::checkPullRequests);
+        }
+        run(tasks);
+    }
+
+    /**
+     * Processes the pull requests webhook deliveries were received for.
+     *
+     * @param pulls     the numbers of the pull requests to process by repository
+     * @param reconcile the repositories to check all open pull requests of instead
+     */
+    void checkPullRequests(final Map<String, Set<Integer>> pulls, final Set<String> reconcile) {
+        final Map<String, Runnable> tasks = new LinkedHashMap<>();
+        for (String repository : reconcile) {
+            final PullPlayer player = players.get(repository);
+            if (player != null) {
+                tasks.put(repository, player::checkPullRequests);
+            }
+        }
+        for (Map.Entry<String, Set<Integer>> entry : pulls.entrySet()) {
+            final PullPlayer player = players.get(entry.getKey());
+            if (player != null && !tasks.containsKey(entry.getKey())) {
+                System.out.printf("Processing webhook events for pulls of %s: %s%n", entry.getKey(), entry.getValue());
+                tasks.put(entry.getKey(), () -> player.checkPullRequests(entry.getValue()));
+            }
+        }
+        run(tasks);
+    }
+
+    void checkRebaseRequired() {
+        each(player -> {
+            try {
+                player.checkRebaseRequired();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    void cleanupComments() {
+        each(PullPlayer::cleanupComments);
+    }
+
+    /**
+     * Deletes the comments of the bot in one repository after another until the given time is up, the next cleanup
+     * starts with the repository where it stopped so every repository gets its turn.
+     *
+     * @param limit the maximum duration of the cleanup of all repositories
+     */
+    void cleanupComments(final Duration limit) {
+        final long deadline = System.nanoTime() + limit.toNanos();
+        final List<PullPlayer> order = new ArrayList<>(players.values());
+        Collections.rotate(order, -nextCleanup);
+        each(order, player -> {
+            final long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return;
+            }
+            try {
+                player.cleanupComments(Duration.ofNanos(left));
+            } finally {
+                if (System.nanoTime() - deadline < 0) {
+                    // completed in time, the next cleanup starts after it
+                    nextCleanup = (nextCleanup + 1) % order.size();
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the cached state of all players to disk, used between cycles of a long running process.
+     */
+    void flush() {
+        each(player -> {
+            try {
+                player.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    void cleanup() throws IOException {
+        if (checks != null) {
+            checks.shutdown();
+        }
+        if (processing != null) {
+            processing.shutdown();
+        }
+        IOException failure = null;
+        for (PullPlayer player : players.values()) {
+            try {
+                player.cleanup();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        // the clients are shared by all players
+        transport.close();
+        if (shards != null) {
+            shards.stop();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Runs a task per repository, each on its own thread. A failing repository doesn't stop the others, the failures
+     * are thrown once all tasks have completed.
+     */
+    private void run(final Map<String, Runnable> tasks) {
+        if (checks == null) {
+            tasks.values().forEach(Runnable::run);
+            return;
+        }
+        final Map<String, Future<?>> results = new LinkedHashMap<>();
+        for (Map.Entry<String, Runnable> entry : tasks.entrySet()) {
+            results.put(entry.getKey(), checks.submit(entry.getValue()));
+        }
+        IllegalStateException failure = null;
+        for (Map.Entry<String, Future<?>> entry : results.entrySet()) {
+            try {
+                entry.getValue().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while checking repositories", e);
+            } catch (ExecutionException e) {
+                failure = failed(failure, entry.getKey(), e.getCause());
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Runs an action for one repository after another. A failing repository doesn't stop the others, the failures are
+     * thrown once all repositories have been handled.
+     */
+    private void each(final Consumer<PullPlayer> action) {
+        each(players.values(), action);
+    }
+
+    private void each(final Collection<PullPlayer> order, final Consumer<PullPlayer> action) {
+        IllegalStateException failure = null;
+        for (PullPlayer player : order) {
+            try {
+                action.accept(player);
+            } catch (RuntimeException e) {
+                if (players.size() == 1) {
+                    throw e;
+                }
+                failure = failed(failure, player.getRepository(), e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static IllegalStateException failed(final IllegalStateException failure, final String repository, final Throwable cause) {
+        final IllegalStateException e = new IllegalStateException("Could not process repository " + repository, cause);
+        if (failure == null) {
+            return e;
+        }
+        failure.addSuppressed(e);
+        return failure;
+    }
+}
@@ -0,0 +1,332 @@
+package org.jboss.pull.player;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Splits the open pull requests between several instances of the player sharing a state directory.
+ * <p/>
+ * Every instance keeps a lease, {@code <shard.id>.lease} in {@code shard.dir}, which a background thread renews every
+ * third of {@code shard.lease.ttl} seconds. The instances holding a lease which has not expired form a consistent hash
+ * ring with {@code shard.points} points each, and a pull request belongs to the instance owning the first point after
+ * the hash of its repository and number. Work on a whole repository, like the comment cleanup, belongs to the owner of
+ * the hash of the repository.
+ * <p/>
+ * An instance which stops deletes its lease, the lease of an instance which died expires. Either way the ring changes
+ * and only the pull requests of that instance move, to the instances owning the following points. The same happens
+ * when an instance joins. Each check takes a {@link Ring} at its start, so the pull requests of an instance can be
+ * checked by two instances for the time it takes the others to see a change. The shared {@link TriggerLedger} keeps
+ * such an overlap from requesting builds twice. As the expiry is compared across hosts, the lease should last
+ * well beyond the clock skew between them.
+ * <p/>
+ * An instance whose lease was taken over by another process with the same id, after it failed to renew it in time,
+ * owns no pull requests until it is restarted.
+ */
+class Shards {
+    private static final String SUFFIX = ".lease";
+    // leases which expired this many lease durations ago are deleted by any instance
+    private static final int STALE_LEASES = 10;
+
+    private final Path dir;
+    private final String id;
+    private final String token = UUID.randomUUID().toString();
+    private final long ttl;
+    private final int points;
+    private final ScheduledExecutorService renewer;
+    private volatile boolean lost;
+    private volatile Ring last;
+
+    /**
+     * Creates the shards, the lease is only taken when {@link #start() started}.
+     *
+     * @param dir    the directory shared by all instances
+     * @param id     the id of this instance, unique among the instances
+     * @param ttl    the time in milliseconds a lease lasts without being renewed
+     * @param points the number of points of each instance on the ring
+     */
+    Shards(final Path dir, final String id, final long ttl, final int points) {
+        this.dir = dir;
+        this.id = id;
+        this.ttl = ttl;
+        this.points = Math.max(1, points);
+        renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "pull-player-shard-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates the shards configured in {@code player.properties}.
+     *
+     * @return the shards or {@code null} if {@code shard.dir} is not set
+     */
+    static Shards create() {
+        final String dir = Util.getProperties().getProperty("shard.dir");
+        if (dir == null) {
+            return null;
+        }
+        return new Shards(Util.BASE_DIR.toPath().resolve(dir.trim()), instanceId(),
+                TimeUnit.SECONDS.toMillis(Util.optionalInt("shard.lease.ttl", 60)), Util.optionalInt("shard.points", 64));
+    }
+
+    /**
+     * @return the id of this instance, {@code shard.id} or the name of the host
+     */
+    static String instanceId() {
+        final String id = Util.getProperties().getProperty("shard.id");
+        if (id != null) {
+            return id.trim();
+        }
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("shard.id must be specified in player.properties, the host name is unknown", e);
+        }
+    }
+
+    String getId() {
+        return id;
+    }
+
+    /**
+     * @return the number of instances in the last ring
+     */
+    int getMembers() {
+        final Ring ring = last;
+        return ring == null ? 0 : ring.members.size();
+    }
+
+    /**
+     * Takes the lease and starts renewing it. If another process holds the lease of the same id, waits for it to
+     * expire, which it does if the process is gone.
+     *
+     * @throws IllegalStateException if the lease is still renewed by another process
+     */
+    void start() {
+        final Path file = dir.resolve(id + SUFFIX);
+        try {
+            Files.createDirectories(dir);
+            final long deadline = System.currentTimeMillis() + 2 * ttl;
+            Lease current;
+            while ((current = read(file)) != null && current.expires > System.currentTimeMillis()) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("The lease of shard " + id + " is renewed by another instance, shard.id must be unique");
+                }
+                System.out.printf("Waiting for the lease of shard %s left by another process to expire%n", id);
+                Thread.sleep(Math.max(100, Math.min(ttl / 3, current.expires - System.currentTimeMillis())));
+            }
+            write(file);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not take the lease of shard " + id, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the lease of shard " + id, e);
+        }
+        renewer.scheduleWithFixedDelay(this::renew, ttl / 3, ttl / 3, TimeUnit.MILLISECONDS);
+        System.out.printf("Shard %s started, leases in %s%n", id, dir);
+    }
+
+    /**
+     * Stops renewing the lease and releases it, so the other instances take over the pull requests right away.
+     */
+    void stop() {
+        renewer.shutdownNow();
+        if (lost) {
+            return;
+        }
+        try {
+            final Path file = dir.resolve(id + SUFFIX);
+            final Lease current = read(file);
+            if (current != null && token.equals(current.token)) {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            // the lease expires anyway
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Reads the leases and builds the ring of the instances holding one.
+     *
+     * @return the ring
+     */
+    Ring ring() {
+        final long now = System.currentTimeMillis();
+        final List<String> members = new ArrayList<>();
+        try (DirectoryStream<Path> leases = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : leases) {
+                final Lease lease = read(file);
+                if (lease == null) {
+                    continue;
+                }
+                if (lease.expires > now) {
+                    members.add(lease.id);
+                } else if (now - lease.expires > STALE_LEASES * ttl) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the leases in " + dir, e);
+        }
+        Collections.sort(members);
+        final Ring ring = new Ring(lost ? null : id, members, points);
+        final Ring previous = last;
+        if (previous == null || !previous.members.equals(members)) {
+            System.out.printf("Shard %s sees instances %s%n", id, members);
+            EventLog.log(EventLog.Level.INFO, "shard.members", -1, -1, "shard", id, "members", members, "owner", ring.self != null && members.contains(id));
+        }
+        last = ring;
+        return ring;
+    }
+
+    private void renew() {
+        if (lost) {
+            return;
+        }
+        final Path file = dir.resolve(id + SUFFIX);
+        try {
+            final Lease current = read(file);
+            if (current != null && !token.equals(current.token)) {
+                // renewing failed for too long and a new process took over, both would process the same pull requests
+                lost = true;
+                System.err.printf("The lease of shard %s has been taken by another process, this instance owns no pull requests anymore%n", id);
+                EventLog.log(EventLog.Level.ERROR, "shard.lease-lost", -1, -1, "shard", id);
+                return;
+            }
+            write(file);
+        } catch (IOException | RuntimeException e) {
+            // the lease expires unless one of the next renewals succeeds
+            e.printStackTrace(System.err);
+        }
+    }
+
+    private void write(final Path file) throws IOException {
+        final ModelNode node = new ModelNode();
+        node.get("id").set(id);
+        node.get("token").set(token);
+        node.get("expires").set(System.currentTimeMillis() + ttl);
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(tmp, StandardCharsets.UTF_8))) {
+            node.writeJSONString(writer, true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Lease read(final Path file) {
+        try (InputStream in = Files.newInputStream(file)) {
+            final ModelNode node = ModelNode.fromJSONStream(in);
+            return new Lease(node.get("id").asString(), node.get("token").asString(), node.get("expires").asLong());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable lease " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * The owners of the pull requests as seen at one point in time.
+     */
+    static class Ring {
+        private final String self;
+        private final List<String> members;
+        private final long[] hashes;
+        private final String[] owners;
+
+        Ring(final String self, final List<String> members, final int points) {
+            this.self = self;
+            this.members = Collections.unmodifiableList(new ArrayList<>(members));
+            final TreeMap<Long, String> ring = new TreeMap<>();
+            for (String member : members) {
+                for (int i = 0; i < points; i++) {
+                    ring.put(hash(member + "#" + i), member);
+                }
+            }
+            hashes = new long[ring.size()];
+            owners = new String[ring.size()];
+            int i = 0;
+            for (Map.Entry<Long, String> entry : ring.entrySet()) {
+                hashes[i] = entry.getKey();
+                owners[i++] = entry.getValue();
+            }
+        }
+
+        /**
+         * @return the ids of the instances, sorted
+         */
+        List<String> getMembers() {
+            return members;
+        }
+
+        /**
+         * @return {@code true} if the pull request belongs to this instance
+         */
+        boolean owns(final String repository, final int pull) {
+            return self != null && self.equals(owner(repository + "#" + pull));
+        }
+
+        /**
+         * @return {@code true} if work on the whole repository belongs to this instance
+         */
+        boolean ownsRepository(final String repository) {
+            return self != null && self.equals(owner(repository));
+        }
+
+        private String owner(final String key) {
+            if (hashes.length == 0) {
+                return null;
+            }
+            int i = Arrays.binarySearch(hashes, hash(key));
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return owners[i == hashes.length ? 0 : i];
+        }
+
+        private static long hash(final String key) {
+            try {
+                return ByteBuffer.wrap(MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8))).getLong();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static class Lease {
+        final String id;
+        final String token;
+        final long expires;
+
+        Lease(final String id, final String token, final long expires) {
+            this.id = id;
+            this.token = token;
+            this.expires = expires;
+        }
+    }
+}
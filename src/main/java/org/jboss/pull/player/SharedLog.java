@@ -0,0 +1,208 @@
+package org.jboss.pull.player;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A file of lines which several processes append to and read, like the completed jobs and the white list of instances
+ * sharing a state directory.
+ * <p/>
+ * Every change is made holding a lock on {@code <file>.lock}, after reading the lines other processes appended since
+ * the last read, so a change can depend on the latest content. Reading continues at the offset read up to, unless the
+ * file has been replaced, in which case the whole content is read again from the start and handed over at once, so
+ * the reader can build its state anew and swap it in while lookups go on. A line which is not terminated while
+ * the lock is held was left by a process which died while writing, it is handed to the reader like any other line and
+ * the next line written starts on a new line.
+ */
+class SharedLog {
+    private final Path file;
+    private final Path lockFile;
+    private final Consumer<List<String>> reload;
+    private final Consumer<String> reader;
+    private Object fileKey;
+    private long position;
+    private boolean terminated = true;
+
+    /**
+     * Creates a log, nothing is read until the first {@link #refresh()} or change.
+     *
+     * @param file   the file
+     * @param reload replaces everything read so far with all lines of the file, called when the file is read from the
+     *               start
+     * @param reader applies a line appended to the file, empty lines are skipped
+     */
+    SharedLog(final Path file, final Consumer<List<String>> reload, final Consumer<String> reader) {
+        this.file = file;
+        this.lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        this.reload = reload;
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the lines appended since the last read.
+     */
+    synchronized void refresh() {
+        locked(() -> true);
+    }
+
+    /**
+     * Appends lines to the file and syncs it to disk.
+     *
+     * @param lines gives the lines to append, called holding the lock after the file has been read so it sees the
+     *              latest content
+     */
+    synchronized void append(final Supplier<List<String>> lines) {
+        locked(() -> {
+            final List<String> added = lines.get();
+            if (added.isEmpty()) {
+                return false;
+            }
+            final StringBuilder text = new StringBuilder();
+            if (!terminated) {
+                text.append('\n');
+            }
+            for (String line : added) {
+                text.append(line).append('\n');
+            }
+            try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                write(out, text);
+                out.force(false);
+                position = out.size();
+            }
+            // the file may have just been created
+            fileKey = fileKey();
+            terminated = true;
+            return true;
+        });
+    }
+
+    /**
+     * Replaces the file with the given lines.
+     *
+     * @param lines gives the new content, called holding the lock after the file has been read so it sees the latest
+     *              content, {@code null} to keep the file as it is
+     *
+     * @return {@code true} if the file has been replaced
+     */
+    synchronized boolean replace(final Supplier<List<String>> lines) {
+        return locked(() -> {
+            final List<String> content = lines.get();
+            if (content == null) {
+                return false;
+            }
+            final StringBuilder text = new StringBuilder();
+            for (String line : content) {
+                text.append(line).append('\n');
+            }
+            final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                write(out, text);
+                out.force(true);
+                position = out.size();
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            fileKey = fileKey();
+            terminated = true;
+            return true;
+        });
+    }
+
+    private boolean locked(final Change change) {
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            final FileLock lock = channel.lock();
+            try {
+                read();
+                return change.apply();
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not update " + file, e);
+        }
+    }
+
+    private void read() throws IOException {
+        final Object key = fileKey();
+        final long size = key == null ? 0 : Files.size(file);
+        final boolean replaced = !Objects.equals(key, fileKey) || size < position;
+        if (replaced) {
+            // replaced by another process
+            fileKey = key;
+            position = 0;
+            terminated = true;
+        }
+        if (size <= position) {
+            if (replaced) {
+                reload.accept(Collections.emptyList());
+            }
+            return;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate((int) (size - position));
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            in.position(position);
+            while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+                // read to the size seen, lines appended meanwhile are read next time
+            }
+        }
+        final byte[] bytes = buffer.array();
+        final int length = buffer.position();
+        final List<String> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i < length && bytes[i] != '\n') {
+                continue;
+            }
+            int end = i;
+            if (end > start && bytes[end - 1] == '\r') {
+                end--;
+            }
+            if (end > start) {
+                lines.add(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+            }
+            start = i + 1;
+        }
+        if (replaced) {
+            reload.accept(lines);
+        } else {
+            lines.forEach(reader);
+        }
+        terminated = length == 0 ? terminated : bytes[length - 1] == '\n';
+        position += length;
+    }
+
+    private Object fileKey() throws IOException {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            // not every file system has file keys, the creation time tells replaced files apart as well
+            return attributes.fileKey() != null ? attributes.fileKey() : attributes.creationTime();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static void write(final FileChannel out, final CharSequence text) throws IOException {
+        final ByteBuffer buffer = StandardCharsets.UTF_8.encode(text.toString());
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private interface Change {
+        boolean apply() throws IOException;
+    }
+}
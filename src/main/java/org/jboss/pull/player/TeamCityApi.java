@@ -1,11 +1,14 @@
 package org.jboss.pull.player;
 
+import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.net.URI;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import javax.net.ssl.SSLContext;
@@ -16,37 +19,67 @@ import org.apache.http.HttpResponse;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
 import org.jboss.dmr.ModelNode;
 
 /**
  * @author Tomaz Cerar (c) 2013 Red Hat Inc.
  */
 public class TeamCityApi {
-    private final HttpClient httpClient;
+    private final CloseableHttpClient httpClient;
+    private final HttpTransport transport;
+    private final boolean ownsTransport;
+    private static final int SNAPSHOT_PAGE_SIZE = 100;
+    private static final String QUEUE_FIELDS = "nextHref,build(buildTypeId,branchName,properties(property(name,value)))";
+    private static final String SNAPSHOT_FIELDS = "nextHref,build(id,number,status,running,branchName,queuedDate,properties(property(name,value)))";
+    private final String serverUrl;
     private final String baseUrl;
     private final Map<String, String> branchMapping = new HashMap<>();
     private final boolean dryRun;
     private final boolean disabled;
+    private volatile Map<String, TeamCityBuild> snapshot;
 
     public TeamCityApi(String host, int port, String username, String password, String branchMapping, boolean dryRun, boolean disabled) throws Exception {
-        if (port == 443) {
-            this.baseUrl = "https://" + host + "/httpAuth";
+        this(host, port, username, password, branchMapping, dryRun, disabled, HttpTransport.create(1), true);
+    }
+
+    /**
+     * Creates the API using a shared transport, which is closed by its owner.
+     */
+    public TeamCityApi(String host, int port, String username, String password, String branchMapping, boolean dryRun, boolean disabled, HttpTransport transport) throws Exception {
+        this(host, port, username, password, branchMapping, dryRun, disabled, transport, false);
+    }
+
+    private TeamCityApi(String host, int port, String username, String password, String branchMapping, boolean dryRun, boolean disabled,
+                        HttpTransport transport, boolean ownsTransport) throws Exception {
+        final String url = Util.getProperties().getProperty("teamcity.url");
+        if (url != null) {
+            // overrides the host and the port, for example to use a replay server
+            this.serverUrl = url.replaceAll("/+$", "");
+            final URI uri = URI.create(serverUrl);
+            host = uri.getHost();
+            port = uri.getPort() != -1 ? uri.getPort() : "https".equals(uri.getScheme()) ? 443 : 80;
+        } else if (port == 443) {
+            this.serverUrl = "https://" + host;
         } else {
-            this.baseUrl = "http://" + host + ":" + port + "/httpAuth";
+            this.serverUrl = "http://" + host + ":" + port;
         }
+        // nextHref links returned by TeamCity already contain the /httpAuth prefix
+        this.baseUrl = serverUrl + "/httpAuth";
        /* this.username = username;
         this.password = password;*/
         this.dryRun = dryRun;
         this.disabled = disabled;
+        this.transport = transport;
+        this.ownsTransport = ownsTransport;
         SSLContext context = SSLContext.getInstance("TLS");
         context.init(null, new X509TrustManager[]{new X509TrustManager() {
             public void checkClientTrusted(X509Certificate[] chain,
@@ -69,11 +102,12 @@ public class TeamCityApi {
         credsProvider.setCredentials(
                 new AuthScope(host, port),
                 new UsernamePasswordCredentials(username, password));
-        httpClient = HttpClients.custom()
+        // shared by the APIs of all repositories using the same transport
+        httpClient = transport.client("teamcity " + serverUrl + " " + username, builder -> builder
                 .setDefaultCredentialsProvider(credsProvider)
                 .setSSLHostnameVerifier(new NoopHostnameVerifier())
                 .setSSLSocketFactory(socketFactory)
-                .build();
+                .build());
         parseBranchMapping(branchMapping);
     }
 
@@ -89,93 +123,144 @@ public class TeamCityApi {
         System.out.println("branchMapping = " + branchMapping);
     }
 
-    private List<Integer> getQueuedBuildsInternally(String buildTypeId) {
-        List<Integer> result = new LinkedList<>();
-
+    /**
+     * Reads the whole build queue with one request, following the next pages, and keeps the builds of pull requests
+     * of the mapped build types. Builds which don't belong to a pull request, like a branch named {@code pull/foo}, are
+     * skipped.
+     *
+     * @return the queued builds of pull requests
+     */
+    BuildQueue getQueuedBuilds() {
         if (disabled) {
             System.err.printf("Warning: TeamCity has been disabled via player.properties no queued build information is available.\n");
-            return result;
+            return BuildQueue.EMPTY;
         }
-        HttpGet get = null;
-        try {
-            //get = new HttpGet(baseUrl + "/app/rest/builds?locator=buildType:" + buildTypeId + ",branch:name:pull/" + pull + ",running:any,count:1");
-            get = new HttpGet(baseUrl + "/app/rest/buildQueue?locator=buildType:" + buildTypeId);
-            get.setHeader(new BasicHeader(HttpHeaders.ACCEPT_ENCODING, "UTF-8"));
-            get.addHeader("Accept", "application/json");
-            final HttpResponse execute = httpClient.execute(get);
-            if (execute.getStatusLine().getStatusCode() != HttpURLConnection.HTTP_OK) {
-                System.err.printf("Could not queued builds");
-            }
-
-            ModelNode node = ModelNode.fromJSONStream(execute.getEntity().getContent());
-            ModelNode builds = node.get("build");
-            if (!builds.isDefined() || builds.asList().isEmpty()) {
-                return result;
-            } else {
-                for (ModelNode build : builds.asList()) {
-                    if (!build.hasDefined("branchName")) {
-                        continue;
+        final BuildQueue result = new BuildQueue();
+        String url = baseUrl + "/app/rest/buildQueue?fields=" + QUEUE_FIELDS;
+        while (url != null) {
+            final HttpGet get = new HttpGet(url);
+            try {
+                get.setHeader(new BasicHeader(HttpHeaders.ACCEPT_ENCODING, "UTF-8"));
+                get.addHeader("Accept", "application/json");
+                final HttpResponse execute = httpClient.execute(get);
+                if (execute.getStatusLine().getStatusCode() != HttpURLConnection.HTTP_OK) {
+                    throw new IllegalStateException("Could not obtain queued builds: " + execute.getStatusLine());
+                }
+                final BuildPage page = readBuilds(execute);
+                for (Build build : page.builds) {
+                    final int pull = build.getPull();
+                    if (pull >= 0 && build.buildTypeId != null && branchMapping.containsValue(build.buildTypeId)) {
+                        result.add(build.buildTypeId, pull);
                     }
-                    String branch = build.get("branchName").asString();
-                    if (!branch.contains("pull")) { continue; }
-                    int pull = Integer.parseInt(branch.substring(branch.indexOf("/") + 1));
-                    result.add(pull);
                 }
-            }
-        } catch (Exception e) {
-            throw new IllegalStateException("Could not obtain build list", e);
-        } finally {
-            if (get != null) {
+                url = page.nextHref != null ? serverUrl + page.nextHref : null;
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not obtain queued builds", e);
+            } finally {
                 get.releaseConnection();
             }
-
         }
+        System.out.printf("Build queue contains %d pull request builds%n", result.size());
         return result;
     }
 
-    List<Integer> getQueuedBuilds() {
-        List<Integer> result = new LinkedList<>();
-        if (disabled) {
-            System.err.printf("Warning: TeamCity has been disabled via player.properties no queued build information is available.\n");
-            return result;
-        }
-        for (String buildType : branchMapping.values()) {
-            result.addAll(getQueuedBuildsInternally(buildType));
-        }
-        return result;
+    /**
+     * @return the id of the build type pull requests against the branch are built with, {@code null} if there is none
+     */
+    String getBuildTypeId(String branch) {
+        return branchMapping.get(branch);
     }
 
     protected boolean hasBranchMapping(String branch) {
         return branchMapping.containsKey(branch);
     }
 
+    /**
+     * Fetches the recent builds of every mapped build type, so {@link #findBuild(int, String, String)} can be answered
+     * without further requests for the pull requests built recently. A pull request matches any recent build with the
+     * same hash, not only the latest build. Only builds of pull request branches are fetched.
+     *
+     * @param size the maximum number of pull request builds to fetch per build type
+     */
+    void refreshSnapshot(int size) {
+        if (disabled) {
+            return;
+        }
+        final Map<String, TeamCityBuild> builds = new HashMap<>();
+        for (String buildTypeId : new HashSet<>(branchMapping.values())) {
+            int count = 0;
+            String url = baseUrl + "/app/rest/builds?locator=buildType:" + buildTypeId
+                    + ",branch:(name:(value:pull/,matchType:starts-with),policy:ALL_BRANCHES),running:any,canceled:any,failedToStart:any,count:" + Math.min(size, SNAPSHOT_PAGE_SIZE)
+                    + "&fields=" + SNAPSHOT_FIELDS;
+            while (url != null && count < size) {
+                final HttpGet get = new HttpGet(url);
+                try {
+                    get.setHeader(new BasicHeader(HttpHeaders.ACCEPT_ENCODING, "UTF-8"));
+                    get.addHeader("Accept", "application/json");
+                    final HttpResponse execute = httpClient.execute(get);
+                    if (execute.getStatusLine().getStatusCode() != HttpURLConnection.HTTP_OK) {
+                        throw new IllegalStateException("Could not obtain builds for " + buildTypeId + ": " + execute.getStatusLine());
+                    }
+                    final BuildPage page = readBuilds(execute);
+                    for (Build build : page.builds) {
+                        count++;
+                        final int pull = build.getPull();
+                        if (build.hash == null || pull < 0) {
+                            continue;
+                        }
+                        final String key = snapshotKey(buildTypeId, pull, build.hash);
+                        // newest builds come first
+                        if (!builds.containsKey(key)) {
+                            final TeamCityBuild teamCityBuild = build.toTeamCityBuild();
+                            if (teamCityBuild != null) {
+                                builds.put(key, teamCityBuild);
+                            }
+                        }
+                    }
+                    url = page.nextHref != null ? serverUrl + page.nextHref : null;
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not obtain build list", e);
+                } finally {
+                    get.releaseConnection();
+                }
+            }
+        }
+        System.out.printf("Build snapshot contains %d builds%n", builds.size());
+        snapshot = builds;
+    }
+
     public TeamCityBuild findBuild(int pull, String hash, String branch) {
         if (disabled) {
             System.err.printf("Warning: TeamCity has been disabled via player.properties, dummy build information will be used.\n");
             return null;
             //return new TeamCityBuild(0, "disabled", false, "20160101T130000+0000");
         }
+        final Map<String, TeamCityBuild> snapshot = this.snapshot;
+        if (snapshot != null) {
+            final TeamCityBuild build = snapshot.get(snapshotKey(branchMapping.get(branch), pull, hash));
+            if (build != null) {
+                return build;
+            }
+            // the build may be older than the snapshot reaches back, ask for the pull request itself
+        }
 
         String buildTypeId = branchMapping.get(branch);
         HttpGet get = null;
+        final long start = System.nanoTime();
         try {
             get = new HttpGet(baseUrl + "/app/rest/builds?locator=buildType:" + buildTypeId + ",branch:name:pull/" + pull + ",running:any,canceled:any,failedToStart:any,count:1");
             get.setHeader(new BasicHeader(HttpHeaders.ACCEPT_ENCODING, "UTF-8"));
             get.addHeader("Accept", "application/json");
             final HttpResponse execute = httpClient.execute(get);
             if (execute.getStatusLine().getStatusCode() != HttpURLConnection.HTTP_OK) {
-                System.err.printf("Could not find build, for pull: %s\n", pull);
+                EventLog.log(EventLog.Level.WARN, "teamcity.find-build-failed", pull, System.nanoTime() - start, "status", execute.getStatusLine());
             }
 
-            ModelNode node = ModelNode.fromJSONStream(execute.getEntity().getContent());
-            ModelNode builds = node.get("build");
-            if (!builds.isDefined() || builds.asList().isEmpty()) {
-                return null;
-            } else {
-                ModelNode buildNode = builds.asList().get(0);
-                String buildId = buildNode.get("id").asString();
-                return getBuildById(buildId, hash);
-            }
+            final List<Build> builds = readBuilds(execute).builds;
+            final TeamCityBuild build = builds.isEmpty() ? null : getBuildById(builds.get(0).id, hash);
+            EventLog.log(EventLog.Level.DEBUG, "teamcity.find-build", pull, System.nanoTime() - start, "sha", hash,
+                    "build", builds.isEmpty() ? null : builds.get(0).id, "matches", build != null);
+            return build;
 
 
         } catch (Exception e) {
@@ -196,38 +281,16 @@ public class TeamCityApi {
             get.addHeader("Accept", "application/json");
             final HttpResponse execute = httpClient.execute(get);
             if (execute.getStatusLine().getStatusCode() != HttpURLConnection.HTTP_OK) {
-                System.err.printf("Could not find build, for id: %s\n", id);
+                EventLog.log(EventLog.Level.WARN, "teamcity.build-failed", -1, -1, "build", id, "status", execute.getStatusLine());
             }
 
-            ModelNode build = ModelNode.fromJSONStream(execute.getEntity().getContent());
-            boolean found = false;
-            for (ModelNode prop : build.get("properties", "property").asList()) {
-                if ("hash".equals(prop.get("name").asString())) {
-                    String value = prop.get("value").asString();
-                    found = hash.equals(value);
-                    break;
-                }
+            final Build build;
+            try (JsonReader reader = new JsonReader(execute.getEntity().getContent())) {
+                build = Build.read(reader);
             }
-            System.out.println("Hash for last build matches: " + found);
+            boolean found = hash.equals(build.hash);
             if (found) {
-                String number = build.get("number").asString();
-                final int num;
-                try {//number can be N/A if it is no longer present on server
-                    num = Integer.parseInt(number);
-                } catch (NumberFormatException e) {
-                    return null;
-                }
-
-
-                /*
-                    "queuedDate" => "20150903T162504+0200",
-                    "startDate" => "20150903T172007+0200",
-                    "finishDate" => "20150903T172008+0200",
-                 */
-
-                return new TeamCityBuild(num, build.get("status").asString(),
-                        build.hasDefined("running") && build.get("running").asBoolean(),
-                        build.get("queuedDate").asString());
+                return build.toTeamCityBuild();
             } else {
                 return null;
             }
@@ -243,19 +306,54 @@ public class TeamCityApi {
         }
     }
 
-    void triggerJob(int pull, String sha1, String branch) {
+    /**
+     * Reads a list of builds, only the fields used by the player are kept.
+     */
+    static BuildPage readBuilds(HttpResponse response) throws IOException {
+        final BuildPage page = new BuildPage();
+        try (JsonReader reader = new JsonReader(response.getEntity().getContent())) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if ("build".equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        page.builds.add(Build.read(reader));
+                    }
+                    reader.endArray();
+                } else if ("nextHref".equals(name)) {
+                    page.nextHref = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        return page;
+    }
+
+    private static String snapshotKey(String buildTypeId, int pull, String hash) {
+        return buildTypeId + '/' + pull + '/' + hash;
+    }
+
+    /**
+     * Adds a build of the pull request to the TeamCity queue.
+     *
+     * @return the id of the queued build, {@code null} if no build was queued
+     */
+    String triggerJob(int pull, String sha1, String branch) {
         if (disabled) {
             System.err.printf("Warning: TeamCity has been disabled via player.properties, build will not be triggered.\n");
-            return;
+            return null;
         }
-        System.out.println("triggering job for pull = " + pull);
         String buildTypeId = branchMapping.get(branch);
         if (dryRun) {
-            System.out.printf("DryRun, not triggering for branch: '%s' build type id: '%s'\n", branch, buildTypeId);
-            return;
+            EventLog.log(EventLog.Level.INFO, "teamcity.trigger-skipped", pull, -1, "reason", "dry-run", "sha", sha1, "build-type", buildTypeId);
+            return null;
         }
 
         HttpPost post = null;
+        final long start = System.nanoTime();
         try {
             post = new HttpPost(baseUrl + "/app/rest/buildQueue");
             post.setHeader(new BasicHeader(HttpHeaders.ACCEPT_ENCODING, "UTF-8"));
@@ -275,9 +373,20 @@ public class TeamCityApi {
             prop.get("name").set("branch");
             prop.get("value").set(branch);
             post.setEntity(new StringEntity(build.toJSONString(false)));
+            post.addHeader("Accept", "application/json");
             final HttpResponse execute = httpClient.execute(post);
             if (execute.getStatusLine().getStatusCode() != HttpURLConnection.HTTP_OK) {
-                System.err.printf("Problem triggering build for pull: %d sha1: %s\nResponse: %s \n", pull, sha1, execute.getStatusLine().toString());
+                EventLog.log(EventLog.Level.ERROR, "teamcity.trigger-failed", pull, System.nanoTime() - start, "sha", sha1,
+                        "build-type", buildTypeId, "status", execute.getStatusLine());
+                EntityUtils.consume(execute.getEntity());
+                return null;
+            }
+            // the response is the queued build
+            try (JsonReader reader = new JsonReader(execute.getEntity().getContent())) {
+                final String id = Build.read(reader).id;
+                EventLog.log(EventLog.Level.INFO, "teamcity.triggered", pull, System.nanoTime() - start, "sha", sha1,
+                        "build-type", buildTypeId, "queued-build", id);
+                return id;
             }
         } catch (Exception e) {
             throw new IllegalStateException(e);
@@ -288,4 +397,136 @@ public class TeamCityApi {
 
         }
     }
+
+    public void close() throws IOException {
+        // the client belongs to the transport
+        if (ownsTransport) {
+            transport.close();
+        }
+    }
+
+    static class BuildPage {
+        final List<Build> builds = new ArrayList<>();
+        String nextHref;
+    }
+
+    /**
+     * The fields of a TeamCity build read from the REST API.
+     */
+    private static class Build {
+        String id;
+        String buildTypeId;
+        String number;
+        String status;
+        boolean running;
+        String branchName;
+        String queuedDate;
+        String hash;
+        String pull;
+
+        private static Build read(JsonReader reader) throws IOException {
+            final Build build = new Build();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "id":
+                        build.id = reader.nextString();
+                        break;
+                    case "buildTypeId":
+                        build.buildTypeId = reader.nextString();
+                        break;
+                    case "number":
+                        build.number = reader.nextString();
+                        break;
+                    case "status":
+                        build.status = reader.nextString();
+                        break;
+                    case "running":
+                        build.running = Boolean.TRUE.equals(reader.nextBoolean());
+                        break;
+                    case "branchName":
+                        build.branchName = reader.nextString();
+                        break;
+                    case "queuedDate":
+                        build.queuedDate = reader.nextString();
+                        break;
+                    case "properties":
+                        readProperties(reader, build);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return build;
+        }
+
+        private static void readProperties(JsonReader reader, Build build) throws IOException {
+            if (reader.peek() == JsonReader.Token.NULL) {
+                reader.skipValue();
+                return;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"property".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String name = null;
+                    String value = null;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        final String field = reader.nextName();
+                        if ("name".equals(field)) {
+                            name = reader.nextString();
+                        } else if ("value".equals(field)) {
+                            value = reader.nextString();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    if ("hash".equals(name)) {
+                        build.hash = value;
+                    } else if ("pull".equals(name)) {
+                        build.pull = value;
+                    }
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        }
+
+        private int getPull() {
+            try {
+                if (pull != null) {
+                    return Integer.parseInt(pull);
+                }
+                if (branchName != null && branchName.startsWith("pull/")) {
+                    return Integer.parseInt(branchName.substring("pull/".length()));
+                }
+            } catch (NumberFormatException ignore) {
+            }
+            return -1;
+        }
+
+        private TeamCityBuild toTeamCityBuild() {
+            final int num;
+            try {//number can be N/A if it is no longer present on server
+                num = Integer.parseInt(number);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            /*
+                "queuedDate" => "20150903T162504+0200",
+                "startDate" => "20150903T172007+0200",
+                "finishDate" => "20150903T172008+0200",
+             */
+
+            return new TeamCityBuild(num, status, running, queuedDate);
+        }
+    }
 }
@@ -0,0 +1,198 @@
+package org.jboss.pull.player;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.Property;
+
+/**
+ * The builds requested from TeamCity, keyed by build type, pull request and head sha, stored in
+ * {@code trigger-ledger.json}.
+ * <p/>
+ * The queue snapshot read at the start of a cycle doesn't know about builds requested since, by an overlapping run or
+ * by processing a pull request twice. Before a build is requested it is {@link #claim(String, int, String, Instant)
+ * claimed} in the ledger, a build requested within the window is not requested again unless a retest was asked for
+ * after it. The ledger is read and written under a lock on {@code trigger-ledger.json.lock}, so players running at the
+ * same time see each other's requests.
+ */
+class TriggerLedger {
+    private final Path file;
+    private final Path lockFile;
+    private final Duration window;
+    private final boolean dryRun;
+
+    /**
+     * Creates the ledger.
+     *
+     * @param file   the file the ledger is stored in
+     * @param window how long a requested build suppresses another request for the same sha
+     * @param dryRun {@code true} to check the ledger without recording anything
+     */
+    TriggerLedger(final Path file, final Duration window, final boolean dryRun) {
+        this.file = file;
+        this.lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        this.window = window;
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * Records that a build is about to be requested, unless one was requested recently.
+     *
+     * @param buildTypeId the build type of the build
+     * @param pull        the pull request number
+     * @param sha         the head sha of the pull request
+     * @param retest      the time of the latest retest asked for on the pull request, may be {@code null}
+     *
+     * @return {@code true} if the build should be requested, {@code false} if it was requested within the window and no
+     * retest was asked for since
+     */
+    synchronized boolean claim(final String buildTypeId, final int pull, final String sha, final Instant retest) {
+        final Instant now = Instant.now();
+        final String key = key(buildTypeId, pull, sha);
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            final FileLock lock = channel.lock();
+            try {
+                final Map<String, Entry> entries = read();
+                final Entry entry = entries.get(key);
+                if (entry != null && entry.requested.plus(window).isAfter(now)
+                        && (retest == null || !retest.isAfter(entry.requested))) {
+                    System.out.printf("Build for pull %d sha1 %s already requested at %s, queue id %s%n", pull, sha, entry.requested, entry.queueId);
+                    return false;
+                }
+                if (!dryRun) {
+                    entries.put(key, new Entry(pull, now, null));
+                    write(entries, now);
+                }
+                return true;
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not update the trigger ledger", e);
+        }
+    }
+
+    /**
+     * Records the id TeamCity queued a claimed build with.
+     *
+     * @param buildTypeId the build type of the build
+     * @param pull        the pull request number
+     * @param sha         the head sha of the pull request
+     * @param queueId     the id of the queued build, {@code null} if the request failed, which releases the claim
+     */
+    synchronized void triggered(final String buildTypeId, final int pull, final String sha, final String queueId) {
+        if (dryRun) {
+            return;
+        }
+        final String key = key(buildTypeId, pull, sha);
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            final FileLock lock = channel.lock();
+            try {
+                final Map<String, Entry> entries = read();
+                final Entry entry = entries.get(key);
+                if (queueId == null) {
+                    entries.remove(key);
+                } else {
+                    entries.put(key, new Entry(pull, entry == null ? Instant.now() : entry.requested, queueId));
+                }
+                write(entries, Instant.now());
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not update the trigger ledger", e);
+        }
+    }
+
+    /**
+     * Drops the entries of the pull requests which are no longer open.
+     *
+     * @param openPulls the numbers of all open pull requests
+     */
+    synchronized void retain(final Set<Integer> openPulls) {
+        if (dryRun || !Files.exists(file)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            final FileLock lock = channel.lock();
+            try {
+                final Map<String, Entry> entries = read();
+                if (entries.values().removeIf(entry -> !openPulls.contains(entry.pull))) {
+                    write(entries, Instant.now());
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not update the trigger ledger", e);
+        }
+    }
+
+    private Map<String, Entry> read() {
+        final Map<String, Entry> entries = new HashMap<>();
+        if (!Files.exists(file)) {
+            return entries;
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            for (Property property : ModelNode.fromJSONStream(in).asPropertyList()) {
+                final ModelNode value = property.getValue();
+                entries.put(property.getName(), new Entry(value.get("pull").asInt(), Instant.parse(value.get("requested").asString()),
+                        value.hasDefined("queue-id") ? value.get("queue-id").asString() : null));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not read the trigger ledger, starting a new one: " + e);
+            entries.clear();
+        }
+        return entries;
+    }
+
+    private void write(final Map<String, Entry> entries, final Instant now) throws IOException {
+        // entries older than the window don't suppress anything, they are only kept for a while for reference
+        final Instant expired = now.minus(window).minus(Duration.ofDays(1));
+        entries.values().removeIf(entry -> entry.requested.isBefore(expired));
+        final ModelNode node = new ModelNode().setEmptyObject();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            final ModelNode value = node.get(entry.getKey());
+            value.get("pull").set(entry.getValue().pull);
+            value.get("requested").set(entry.getValue().requested.toString());
+            if (entry.getValue().queueId != null) {
+                value.get("queue-id").set(entry.getValue().queueId);
+            }
+        }
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(tmp, StandardCharsets.UTF_8))) {
+            node.writeJSONString(writer, true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String key(final String buildTypeId, final int pull, final String sha) {
+        return buildTypeId + '/' + pull + '/' + sha;
+    }
+
+    private static class Entry {
+        final int pull;
+        final Instant requested;
+        final String queueId;
+
+        Entry(final int pull, final Instant requested, final String queueId) {
+            this.pull = pull;
+            this.requested = requested;
+            this.queueId = queueId;
+        }
+    }
+}
@@ -85,6 +85,26 @@ class Util {
         return Boolean.parseBoolean(result.trim());
     }
 
+    static int optionalInt(final String name, final int defaultValue) {
+        final String result = PropertiesHolder.PROPERTIES.getProperty(name);
+        if (result == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(result.trim());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException(name + " must be a number in player.properties, found: " + result);
+        }
+    }
+
+    /**
+     * Returns the name of a setting for a repository: {@code repo.<owner>/<name>.<setting>} if it is set, the global
+     * setting otherwise.
+     */
+    static String repositoryKey(final String repository, final String name) {
+        final String key = "repo." + repository + "." + name;
+        return PropertiesHolder.PROPERTIES.containsKey(key) ? key : name;
+    }
+
     private static class PropertiesHolder {
         static final Properties PROPERTIES = new Properties();
         static {
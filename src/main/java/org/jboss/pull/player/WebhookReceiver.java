@@ -0,0 +1,228 @@
+package org.jboss.pull.player;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Accepts GitHub webhook deliveries and records which pull requests need to be processed.
+ * <p/>
+ * Deliveries are verified against the {@code X-Hub-Signature-256} header and kept by the repository they are for,
+ * deliveries for repositories which are not served are ignored. Events for the same pull request are coalesced until
+ * they are {@link #drain() drained}, if more pull requests are pending than the queue allows a full reconciliation of
+ * the repository is requested instead. A push to a branch changes the mergeability of the pull requests against it,
+ * so those pull requests are queued. Pushes to the head of a pull request are delivered as {@code pull_request} events
+ * as well, pushes to tags are ignored.
+ */
+class WebhookReceiver {
+    private static final int MAX_PAYLOAD = 25 * 1024 * 1024;
+    private static final String SIGNATURE_PREFIX = "sha256=";
+    private static final String BRANCH_PREFIX = "refs/heads/";
+
+    private final HttpServer server;
+    private final byte[] secret;
+    private final int capacity;
+    private final Runnable listener;
+    private final Set<String> repositories;
+    private final BiFunction<String, String, Set<Integer>> pullsAgainst;
+    private final Map<String, Set<Integer>> pending = new LinkedHashMap<>();
+    private final Set<String> reconcile = new LinkedHashSet<>();
+    private int size;
+
+    /**
+     * Creates a new receiver, the receiver does not accept deliveries until {@link #start() started}.
+     *
+     * @param port     the port to listen on
+     * @param path     the context path deliveries are posted to
+     * @param secret   the secret configured on the GitHub webhook
+     * @param capacity     the maximum number of pull requests waiting to be processed
+     * @param repositories the repositories served, as {@code owner/name}
+     * @param pullsAgainst gives the open pull requests of a repository against a branch
+     * @param listener     notified every time new work has been queued
+     *
+     * @throws IOException if the server could not be bound
+     */
+    WebhookReceiver(final int port, final String path, final String secret, final int capacity, final Set<String> repositories,
+                    final BiFunction<String, String, Set<Integer>> pullsAgainst, final Runnable listener) throws IOException {
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.capacity = capacity;
+        this.repositories = repositories;
+        this.pullsAgainst = pullsAgainst;
+        this.listener = listener;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(path, this::handle);
+    }
+
+    void start() {
+        server.start();
+        System.out.printf("Listening for webhooks on port %d%n", server.getAddress().getPort());
+    }
+
+    void stop() {
+        server.stop(1);
+    }
+
+    /**
+     * Removes all the pull requests waiting to be processed.
+     *
+     * @return the work queued since the last drain
+     */
+    synchronized Work drain() {
+        final Work work = new Work(new LinkedHashMap<>(pending), new LinkedHashSet<>(reconcile));
+        pending.clear();
+        reconcile.clear();
+        size = 0;
+        return work;
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+                return;
+            }
+            final byte[] payload = read(exchange.getRequestBody());
+            if (payload == null) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_ENTITY_TOO_LARGE, -1);
+                return;
+            }
+            if (!verify(exchange.getRequestHeaders().getFirst("X-Hub-Signature-256"), payload)) {
+                System.err.printf("Rejecting webhook delivery %s, invalid signature%n", exchange.getRequestHeaders().getFirst("X-GitHub-Delivery"));
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_UNAUTHORIZED, -1);
+                return;
+            }
+            final String event = exchange.getRequestHeaders().getFirst("X-GitHub-Event");
+            if (accept(event, ModelNode.fromJSONStream(new ByteArrayInputStream(payload)))) {
+                listener.run();
+            }
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_ACCEPTED, -1);
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_REQUEST, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private boolean accept(final String event, final ModelNode payload) {
+        final String action = payload.get("action").asString("");
+        final String repository = payload.get("repository", "full_name").asString("");
+        if (!repositories.contains(repository)) {
+            return false;
+        }
+        if ("pull_request".equals(event)) {
+            if ("closed".equals(action)) {
+                return false;
+            }
+            return enqueue(repository, payload.get("pull_request", "number").asInt());
+        } else if ("issue_comment".equals(event)) {
+            // comments on plain issues are delivered as well
+            if ("deleted".equals(action) || !payload.get("issue").hasDefined("pull_request")) {
+                return false;
+            }
+            return enqueue(repository, payload.get("issue", "number").asInt());
+        } else if ("push".equals(event)) {
+            final String ref = payload.get("ref").asString("");
+            if (!ref.startsWith(BRANCH_PREFIX)) {
+                return false;
+            }
+            final Set<Integer> pulls = pullsAgainst.apply(repository, ref.substring(BRANCH_PREFIX.length()));
+            if (pulls.isEmpty()) {
+                return false;
+            }
+            System.out.printf("Push to %s of %s, queuing the pull requests against it: %s%n", ref, repository, pulls);
+            boolean queued = false;
+            for (int pull : pulls) {
+                queued |= enqueue(repository, pull);
+            }
+            return queued;
+        }
+        return false;
+    }
+
+    private synchronized boolean enqueue(final String repository, final int pull) {
+        if (reconcile.contains(repository)) {
+            return false;
+        }
+        final Set<Integer> pulls = pending.computeIfAbsent(repository, r -> new LinkedHashSet<>());
+        if (pulls.contains(pull)) {
+            return false;
+        }
+        if (size >= capacity) {
+            System.err.printf("Webhook queue is full, pull %d of %s will be handled by reconciliation%n", pull, repository);
+            return requestReconcile(repository);
+        }
+        pulls.add(pull);
+        size++;
+        return true;
+    }
+
+    private synchronized boolean requestReconcile(final String repository) {
+        // the reconciliation processes the pending pull requests of the repository as well
+        final Set<Integer> pulls = pending.remove(repository);
+        if (pulls != null) {
+            size -= pulls.size();
+        }
+        return reconcile.add(repository);
+    }
+
+    private boolean verify(final String signature, final byte[] payload) throws NoSuchAlgorithmException, InvalidKeyException {
+        if (signature == null || !signature.startsWith(SIGNATURE_PREFIX)) {
+            return false;
+        }
+        final Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        final byte[] digest = mac.doFinal(payload);
+        final StringBuilder expected = new StringBuilder(SIGNATURE_PREFIX);
+        for (byte b : digest) {
+            expected.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return MessageDigest.isEqual(expected.toString().getBytes(StandardCharsets.US_ASCII), signature.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] read(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+            if (out.size() > MAX_PAYLOAD) {
+                return null;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * The work queued by webhook deliveries.
+     */
+    static class Work {
+        // the pull requests to process by repository
+        final Map<String, Set<Integer>> pulls;
+        // the repositories to reconcile
+        final Set<String> reconcile;
+
+        private Work(final Map<String, Set<Integer>> pulls, final Set<String> reconcile) {
+            this.pulls = pulls;
+            this.reconcile = reconcile;
+        }
+    }
+}